@@ -34,11 +34,17 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
     private final List<MatchError> errors = new ArrayList<>();
     private final Map<String, T> matches = new HashMap<>();
 
+    /* Matches for each document in an InputBatch, keyed by document id */
+    private final Map<String, Map<String, T>> batchMatches = new HashMap<>();
+
     private long queryBuildTime = -1;
     private long searchTime = System.nanoTime();
     private int queriesRun = -1;
 
-    protected final StringBuilder slowlog = new StringBuilder();
+    protected final SlowLog slowlog = new SlowLog();
+
+    /* Set by the Monitor on matchers that defer matching, so they can report query times themselves */
+    private volatile MonitorMetrics metrics;
 
     /**
      * Creates a new CandidateMatcher for the supplied InputDocument
@@ -68,6 +74,33 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
             matches.put(queryId, match);
     }
 
+    /**
+     * Record a match against one of the documents in an {@link InputBatch}
+     * @param batchDoc the document's docid in the batch's index
+     * @param queryId the query id
+     * @param match the match
+     */
+    protected void addMatch(int batchDoc, String queryId, T match) {
+        String docId = ((InputBatch) doc).getDocumentId(batchDoc);
+        Map<String, T> docMatches = batchMatches.get(docId);
+        if (docMatches == null) {
+            docMatches = new HashMap<>();
+            batchMatches.put(docId, docMatches);
+        }
+        if (docMatches.containsKey(queryId))
+            docMatches.put(queryId, resolve(match, docMatches.get(queryId)));
+        else
+            docMatches.put(queryId, match);
+    }
+
+    /**
+     * @return true if this matcher reports matches for each document when run over an
+     *         {@link InputBatch}
+     */
+    protected boolean supportsBatches() {
+        return false;
+    }
+
     /**
      * If two matches from the same query are found (for example, two branches of a disjunction),
      * combine them.
@@ -98,6 +131,32 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
         this.searchTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - searchTime, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * @return true if this matcher runs queries after they have all been collected, in
+     *         {@link #finish(long, int)}, rather than in {@link #matchQuery(String, Query, Query)}.
+     *         Such matchers report their own query times using {@link #reportQueryRun(String, long, boolean)}.
+     */
+    protected boolean defersMatching() {
+        return false;
+    }
+
+    void setMetrics(MonitorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Report the time taken to run a query, if the Monitor is recording metrics.  May be
+     * called from any thread.
+     * @param queryId the query id
+     * @param nanos the time taken to run the query, in nanoseconds
+     * @param matched true if the query matched the document
+     */
+    protected void reportQueryRun(String queryId, long nanos, boolean matched) {
+        MonitorMetrics m = metrics;
+        if (m != null)
+            m.queryRun(queryId, nanos, matched);
+    }
+
     /*
      * Called by the Monitor
      */
@@ -115,6 +174,22 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
     }
 
     public Matches<T> getMatches() {
-        return new Matches<>(doc.getId(), matches, errors, queryBuildTime, searchTime, queriesRun, slowlog.toString());
+        return new Matches<>(doc.getId(), matches, errors, queryBuildTime, searchTime, queriesRun, slowlog);
+    }
+
+    /**
+     * Get the matches for each document of an {@link InputBatch}.  Errors, timings
+     * and the slow log are shared by all the documents in the batch.
+     * @return a Map of document id to {@link Matches}, in the order the documents were added to the batch
+     */
+    public Map<String, Matches<T>> getBatchMatches() {
+        Map<String, Matches<T>> results = new LinkedHashMap<>();
+        for (String docId : ((InputBatch) doc).getDocumentIds()) {
+            Map<String, T> docMatches = batchMatches.get(docId);
+            if (docMatches == null)
+                docMatches = Collections.emptyMap();
+            results.put(docId, new Matches<>(docId, docMatches, errors, queryBuildTime, searchTime, queriesRun, slowlog));
+        }
+        return results;
     }
 }
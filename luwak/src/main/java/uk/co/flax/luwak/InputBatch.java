@@ -0,0 +1,248 @@
+package uk.co.flax.luwak;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An InputBatch holds a number of documents in a single in-memory index segment,
+ * so that they can be matched against a Monitor together.
+ *
+ * The presearcher selects candidate queries using the terms from all documents in
+ * the batch, and each candidate query is then run once over the whole segment, rather
+ * than once per document.  This amortises the cost of creating a query's Weight and
+ * Scorer across the batch, which helps when many documents select the same queries.
+ * A query that is selected by one document is run against every document in the batch,
+ * so batches work best when their documents are similar.
+ *
+ * Build an InputBatch using the static {@link #builder(String)} method:
+ * <pre>
+ *     InputBatch batch = InputBatch.builder("batch1")
+ *          .addDocument("doc1").addField("field", "some text", analyzer)
+ *          .addDocument("doc2").addField("field", "some more text", analyzer)
+ *          .build();
+ *     Map&lt;String, Matches&lt;QueryMatch&gt;&gt; matches = monitor.match(batch, SimpleMatcher.FACTORY);
+ * </pre>
+ *
+ * Scores and term statistics are computed over the whole batch, so scoring matchers
+ * may report different scores than they would for the same documents matched
+ * individually.
+ *
+ * The batch's index is held open until the batch is closed, so close it once it
+ * has been matched.
+ *
+ * @see Monitor#match(InputBatch, MatcherFactory)
+ */
+public class InputBatch extends InputDocument implements Closeable {
+
+    /**
+     * Create a new fluent {@link uk.co.flax.luwak.InputBatch.Builder} object
+     * @param id the id of the batch
+     * @return a Builder
+     */
+    public static Builder builder(String id) {
+        return new Builder(id);
+    }
+
+    private static final String ID_FIELD = "__batchid";
+
+    private static final FieldType FIELDTYPE;
+    static {
+        FIELDTYPE = new FieldType();
+        FIELDTYPE.setTokenized(true);
+        FIELDTYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        FIELDTYPE.freeze();
+    }
+
+    private final List<String> documentIds;
+    private final String[] docIdsByDoc;
+    private final RAMDirectory directory;
+    private final DirectoryReader directoryReader;
+    private final LeafReader reader;
+
+    private InputBatch(String id, List<String> documentIds, RAMDirectory directory, DirectoryReader directoryReader) {
+        super(id, new IndexSearcher(directoryReader.leaves().get(0).reader()));
+        this.documentIds = documentIds;
+        this.directory = directory;
+        this.directoryReader = directoryReader;
+        this.reader = directoryReader.leaves().get(0).reader();
+        this.docIdsByDoc = new String[reader.maxDoc()];
+        BinaryDocValues ids = reader.getBinaryDocValues(ID_FIELD);
+        for (int doc = 0; doc < docIdsByDoc.length; doc++) {
+            docIdsByDoc[doc] = ids.get(doc).utf8ToString();
+        }
+    }
+
+    @Override
+    public LeafReader asAtomicReader() {
+        return reader;
+    }
+
+    /**
+     * Close the batch's index
+     * @throws IOException on IO errors
+     */
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(directoryReader, directory);
+    }
+
+    /**
+     * @return the ids of the documents in the batch, in the order they were added
+     */
+    public List<String> getDocumentIds() {
+        return documentIds;
+    }
+
+    /**
+     * @return the number of documents in the batch
+     */
+    public int size() {
+        return documentIds.size();
+    }
+
+    /**
+     * Get the id of a document in the batch
+     * @param doc the document's docid in the batch's index
+     * @return the document's id
+     */
+    public String getDocumentId(int doc) {
+        return docIdsByDoc[doc];
+    }
+
+    // A field analyzed by its own Analyzer when it is indexed, rather than the IndexWriter's
+    private static class AnalyzedField extends Field {
+
+        final Analyzer analyzer;
+
+        AnalyzedField(String name, String text, Analyzer analyzer) {
+            super(name, text, FIELDTYPE);
+            this.analyzer = analyzer;
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer ignored, TokenStream reuse) throws IOException {
+            return analyzer.tokenStream(name(), stringValue());
+        }
+    }
+
+    /**
+     * Fluent interface to construct a new InputBatch
+     */
+    public static class Builder {
+
+        private final String id;
+        private final List<Document> docs = new ArrayList<>();
+        private final Set<String> ids = new LinkedHashSet<>();
+
+        private Document current = null;
+
+        /**
+         * Create a new Builder for an InputBatch with the given id
+         * @param id the id of the InputBatch
+         */
+        public Builder(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Start a new document in the batch.  Subsequent calls to addField will add fields
+         * to this document.
+         * @param id the id of the document
+         * @return the Builder object
+         */
+        public Builder addDocument(String id) {
+            if (!ids.add(id))
+                throw new IllegalArgumentException("Duplicate document id in InputBatch: " + id);
+            current = new Document();
+            current.add(new BinaryDocValuesField(ID_FIELD, new BytesRef(id)));
+            docs.add(current);
+            return this;
+        }
+
+        /**
+         * Add a field to the current document
+         *
+         * @param field the field name
+         * @param text the text content of the field
+         * @param analyzer the {@link Analyzer} to use for this field
+         *
+         * @return the Builder object
+         */
+        public Builder addField(String field, String text, Analyzer analyzer) {
+            currentDocument().add(new AnalyzedField(field, text, analyzer));
+            return this;
+        }
+
+        /**
+         * Add a field to the current document
+         *
+         * @param field the field name
+         * @param tokenStream a tokenstream containing the field contents
+         *
+         * @return the Builder object
+         */
+        public Builder addField(String field, TokenStream tokenStream) {
+            currentDocument().add(new Field(field, tokenStream, FIELDTYPE));
+            return this;
+        }
+
+        private Document currentDocument() {
+            if (current == null)
+                throw new IllegalStateException("Call addDocument() before adding fields to an InputBatch");
+            return current;
+        }
+
+        /**
+         * Build the InputBatch
+         * @return the InputBatch
+         * @throws IOException on IO errors
+         */
+        public InputBatch build() throws IOException {
+            if (docs.isEmpty())
+                throw new IllegalStateException("An InputBatch must contain at least one document");
+            RAMDirectory directory = new RAMDirectory();
+            IndexWriterConfig iwc = new IndexWriterConfig(new WhitespaceAnalyzer());
+            try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+                for (Document doc : docs) {
+                    writer.addDocument(doc);
+                }
+                // docids may be reordered by the merge, so document ids are read back from docvalues
+                writer.forceMerge(1);
+            }
+            DirectoryReader reader = DirectoryReader.open(directory);
+            return new InputBatch(id, new ArrayList<>(ids), directory, reader);
+        }
+
+    }
+
+}
@@ -25,6 +25,10 @@ import org.apache.lucene.search.IndexSearcher;
 /**
  * An InputDocument represents a document to be run against registered queries
  * in the Monitor.  It should be constructed using the static #builder() method.
+ *
+ * Building an InputDocument allocates a new in-memory index.  At high document rates,
+ * use {@link #reusableBuilder(String)} or {@link #builder(String, InputDocument)} to
+ * reset and reuse an existing InputDocument's index instead.
  */
 public class InputDocument {
 
@@ -37,14 +41,62 @@ public class InputDocument {
         return new Builder(id);
     }
 
-    private final String id;
+    /**
+     * Create a new fluent {@link uk.co.flax.luwak.InputDocument.Builder} object that
+     * resets and reuses an existing InputDocument.
+     *
+     * The existing InputDocument must not be used once this method has been called, and
+     * in particular must not be in the process of being matched by a Monitor.
+     *
+     * @param id the id
+     * @param reuse the InputDocument to reuse
+     * @return a Builder
+     */
+    public static Builder builder(String id, InputDocument reuse) {
+        if (reuse.index == null)
+            throw new IllegalArgumentException("Only InputDocuments created by a Builder can be reused");
+        reuse.reset(id);
+        return new Builder(reuse);
+    }
+
+    private static final ThreadLocal<InputDocument> reusableDocs = new ThreadLocal<InputDocument>() {
+        @Override
+        protected InputDocument initialValue() {
+            return new InputDocument(null);
+        }
+    };
+
+    /**
+     * Create a new fluent {@link uk.co.flax.luwak.InputDocument.Builder} object that
+     * reuses an InputDocument held for the current thread.
+     *
+     * Each call on a thread returns a Builder for the same InputDocument, so a document
+     * built this way is only valid until the next call to this method on the same thread.
+     * Do not use this if documents are matched asynchronously, or are held after matching.
+     *
+     * @param id the id
+     * @return a Builder
+     */
+    public static Builder reusableBuilder(String id) {
+        return builder(id, reusableDocs.get());
+    }
+
+    private String id;
 
-    private final MemoryIndex index = new MemoryIndex(true);
+    private final MemoryIndex index;
     private IndexSearcher searcher;
 
     // protected constructor - use a Builder to create objects
     protected InputDocument(String id) {
         this.id = id;
+        this.index = new MemoryIndex(true);
+    }
+
+    // for subclasses that hold their own index, rather than a MemoryIndex
+    InputDocument(String id, IndexSearcher searcher) {
+        this.id = id;
+        this.index = null;
+        this.searcher = searcher;
     }
 
     private void finish() {
@@ -52,6 +104,14 @@ public class InputDocument {
         searcher = index.createSearcher();
     }
 
+    // Clear the index for reuse.  The searcher is cheap to create, and its reader caches
+    // per-field norms, so a new one is built for each document.
+    private void reset(String id) {
+        this.id = id;
+        this.searcher = null;
+        index.reset();
+    }
+
     /**
      * Get the document's ID
      * @return the document's ID
@@ -84,7 +144,11 @@ public class InputDocument {
          * @param id the id of the InputDocument
          */
         public Builder(String id) {
-            this.doc = new InputDocument(id);
+            this(new InputDocument(id));
+        }
+
+        private Builder(InputDocument doc) {
+            this.doc = doc;
         }
 
         /**
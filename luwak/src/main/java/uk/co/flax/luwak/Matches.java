@@ -34,17 +34,18 @@ public class Matches<T extends QueryMatch> implements Iterable<T> {
     private final long searchTime;
     private final int queriesRun;
 
-    protected final String slowlog;
+    protected final SlowLog slowlog;
 
     public Matches(String docId, Map<String, T> matches, List<MatchError> errors,
-                   long queryBuildTime, long searchTime, int queriesRun, String slowlog) {
+                   long queryBuildTime, long searchTime, int queriesRun, SlowLog slowlog) {
         this.docId = docId;
         this.matches = Collections.unmodifiableMap(matches);
         this.errors = Collections.unmodifiableList(errors);
         this.queryBuildTime = queryBuildTime;
         this.searchTime = searchTime;
         this.queriesRun = queriesRun;
-        this.slowlog = slowlog;
+        // each Matches owns its slow log, so it is not changed by the matcher or shared between documents
+        this.slowlog = new SlowLog(slowlog);
     }
 
     @Override
@@ -113,12 +114,14 @@ public class Matches<T extends QueryMatch> implements Iterable<T> {
     /**
      * Return the slow log for this match run.
      *
-     * The slow log contains a list of all queries that took longer than the slow log
-     * limit to run.
+     * The slow log contains a list of the queries that took longer than the slow log
+     * limit to run.  If more than {@link SlowLog#DEFAULT_MAX_ENTRIES} queries were slow,
+     * only the slowest are included.  The log is a copy taken when this Matches object was
+     * created, so it is not affected by later match runs.
      *
      * @return the slow log
      */
-    public String getSlowLog() {
+    public SlowLog getSlowLog() {
         return slowlog;
     }
 
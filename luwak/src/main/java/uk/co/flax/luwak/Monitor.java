@@ -1,14 +1,15 @@
 package uk.co.flax.luwak;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.*;
@@ -17,13 +18,16 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.search.intervals.Interval;
 import org.apache.lucene.search.intervals.IntervalCollector;
 import org.apache.lucene.search.intervals.IntervalIterator;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.presearcher.PerFieldTokenFilter;
 import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.PresearcherProfile;
 import uk.co.flax.luwak.presearcher.TermsEnumFilter;
+import uk.co.flax.luwak.util.QueryRewriter;
 
 /*
  * Copyright (c) 2015 Lemur Consulting Ltd.
@@ -50,35 +54,69 @@ public class Monitor implements Closeable {
     private final MonitorQueryParser queryParser;
     private final Presearcher presearcher;
     private final QueryDecomposer decomposer;
+    private final QuerySerializer serializer;
+    private final String snapshotVersion;
+    private final MonitorMetrics metrics;
+    private final boolean compileAutomata;
+
+    /* Limits the number of asynchronous matches in progress */
+    private final Semaphore inFlightMatches;
 
     private final Directory directory;
     private final IndexWriter writer;
     private final SearcherManager manager;
 
+    /* A term filter over the current queryindex, rebuilt whenever the index is refreshed */
+    private volatile TermsEnumFilter termsFilter;
+
     private long slowLogLimit = 2000000;
 
     private long commitBatchSize = 5000;
 
-    /* Used to cache updates while a purge is ongoing */
-    private volatile Map<BytesRef, CacheEntry> purgeCache = null;
+    /* The query cache */
+    private final QueryCache queries = new QueryCache();
+
+    /* Slots of deleted queries, to be removed from the query cache at the next purge */
+    private final Queue<PendingEviction> pendingEvictions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingEvictionCount = new AtomicInteger();
+
+    /* Generations of the queryindex readers that are still open */
+    private final AtomicLong readerGeneration = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> openReaders = new ConcurrentSkipListSet<>();
+
+    /* The next unallocated slot in the query cache */
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    /* Slots released by purges, which are reused before new slots are allocated */
+    private final Queue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+
+    /* The cache slots of the current version of each query.  This is updated along with the queryindex,
+       so the slots of a replaced or deleted query are found even if it has not been committed yet */
+    private final ConcurrentMap<String, List<Integer>> liveSlots = new ConcurrentHashMap<>();
 
-    /* Used to lock around the creation of the purgeCache */
-    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
+    /* Serializes updates and deletions of the same query id */
+    private final ReentrantLock[] idLocks = newLocks(64);
 
-    /* The current query cache */
-    private Map<BytesRef, CacheEntry> queries = new ConcurrentHashMap<>();
-    // NB this is not final because it can be replaced by purgeCache()
+    private final List<QueryListener> queryListeners = new CopyOnWriteArrayList<>();
 
     public static final class FIELDS {
         public static final String id = "_id";
         public static final String del = "_del";
         public static final String hash = "_hash";
+        public static final String slot = "_slot";
+        public static final String snapshot = "_snapshot";
         public static final String mq = "_mq";
     }
 
     private final ScheduledExecutorService purgeExecutor;
 
-    private long lastPurged = -1;
+    private volatile long lastPurged = -1;
+
+    private volatile int lastPurgeEvictions = 0;
+
+    /* Counts of candidate queries run with and without a cached pre-rewritten form */
+    private final AtomicLong rewriteHits = new AtomicLong();
+    private final AtomicLong rewriteMisses = new AtomicLong();
 
     /**
      * Create a new Monitor instance, using a passed in Directory for its queryindex
@@ -95,11 +133,30 @@ public class Monitor implements Closeable {
         this.presearcher = presearcher;
         this.directory = directory;
         this.decomposer = decomposer;
+        this.serializer = configureQuerySerializer();
+        this.snapshotVersion = serializer == null
+                ? null : serializer.getClass().getName() + "/" + configureSnapshotVersion();
+        this.metrics = configureMetrics();
+        this.compileAutomata = configureCompiledAutomata();
+        this.inFlightMatches = new Semaphore(configureMaxInFlightMatches());
 
         IndexWriterConfig iwc = new IndexWriterConfig(new WhitespaceAnalyzer());
         this.writer = new IndexWriter(directory, configureIndexWriterConfig(iwc));
 
         this.manager = new SearcherManager(writer, true, new SearcherFactory());
+        refreshTermsFilter();
+        this.manager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() throws IOException {
+
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) throws IOException {
+                if (didRefresh)
+                    refreshTermsFilter();
+            }
+        });
 
         loadCache();
 
@@ -153,125 +210,433 @@ public class Monitor implements Closeable {
         /** Time the query cache was last purged */
         public final long lastPurged;
 
-        public CacheStats(int queries, int cachedQueries, long lastPurged) {
+        /** Approximate memory used by the query cache, not including the cached queries */
+        public final long cacheRamBytesUsed;
+
+        /** Number of deleted queries waiting to be removed from the query cache */
+        public final int pendingEvictions;
+
+        /** Number of queries removed from the query cache by the last purge */
+        public final int lastPurgeEvictions;
+
+        /** Number of times a candidate query was run using a cached pre-rewritten form */
+        public final long rewriteHits;
+
+        /** Number of times a candidate query had to be rewritten against the document */
+        public final long rewriteMisses;
+
+        /** Approximate memory used by multi-term query automata compiled by the query cache */
+        public final long automatonRamBytesUsed;
+
+        public CacheStats(int queries, int cachedQueries, long lastPurged, long cacheRamBytesUsed,
+                          int pendingEvictions, int lastPurgeEvictions, long rewriteHits, long rewriteMisses,
+                          long automatonRamBytesUsed) {
             this.queries = queries;
             this.cachedQueries = cachedQueries;
             this.lastPurged = lastPurged;
+            this.cacheRamBytesUsed = cacheRamBytesUsed;
+            this.pendingEvictions = pendingEvictions;
+            this.lastPurgeEvictions = lastPurgeEvictions;
+            this.rewriteHits = rewriteHits;
+            this.rewriteMisses = rewriteMisses;
+            this.automatonRamBytesUsed = automatonRamBytesUsed;
         }
     }
 
     protected static class CacheEntry {
 
+        public final String queryId;
         public final Query matchQuery;
         public final Query highlightQuery;
         public final BytesRef hash;
 
-        public CacheEntry(BytesRef hash, Query matchQuery, Query highlightQuery) {
+        /* The queries to run, rewritten ahead of time if their rewrites don't depend on the document,
+           or otherwise with any multi-term automata compiled ahead of time */
+        final Query preparedMatchQuery;
+        final Query preparedHighlightQuery;
+        final boolean prepared;
+        final long automatonRamBytesUsed;
+
+        public CacheEntry(String queryId, BytesRef hash, Query matchQuery, Query highlightQuery) {
+            this(queryId, hash, matchQuery, highlightQuery, false);
+        }
+
+        public CacheEntry(String queryId, BytesRef hash, Query matchQuery, Query highlightQuery,
+                          boolean compileAutomata) {
+            this.queryId = queryId;
             this.hash = hash;
             this.matchQuery = matchQuery;
             this.highlightQuery = highlightQuery;
+
+            Query rewrittenMatch = QueryRewriter.rewrite(matchQuery);
+            Query rewrittenHighlight = highlightQuery == null ? null : QueryRewriter.rewrite(highlightQuery);
+            this.prepared = rewrittenMatch != null;
+            this.preparedMatchQuery = rewrittenMatch != null ? rewrittenMatch : prepare(matchQuery, compileAutomata);
+            this.preparedHighlightQuery = rewrittenHighlight != null
+                    ? rewrittenHighlight : prepare(highlightQuery, compileAutomata);
+            this.automatonRamBytesUsed = QueryRewriter.automatonRamBytesUsed(preparedMatchQuery)
+                    + (preparedHighlightQuery == null ? 0 : QueryRewriter.automatonRamBytesUsed(preparedHighlightQuery));
+        }
+
+        private static Query prepare(Query query, boolean compileAutomata) {
+            if (query == null || !compileAutomata)
+                return query;
+            return QueryRewriter.compileAutomata(query);
         }
     }
 
+    /* Counted down when the query cache has been populated from the queryindex */
+    private final CountDownLatch cacheLoaded = new CountDownLatch(1);
+
+    private final List<Exception> loadErrors = Collections.synchronizedList(new ArrayList<Exception>());
+
+    /* The number of documents loaded by each cache loading task */
+    private static final int LOAD_CHUNK_SIZE = 10000;
+
     private void loadCache() throws IOException {
-        final List<Exception> parseErrors = new LinkedList<>();
 
-        match(new MatchAllDocsQuery(), new MonitorQueryCollector() {
+        final IndexSearcher searcher = manager.acquire();
+        final UpdateReporter reporter = configureLoadReporter();
+        final Map<String, MonitorQuery> unslotted = new ConcurrentHashMap<>();
+        final AtomicInteger loadedCount = new AtomicInteger();
+
+        int maxSlot = -1;
+        BitSet usedSlots = new BitSet();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+            NumericDocValues slots = ctx.reader().getNumericDocValues(FIELDS.slot);
+            SortedDocValues ids = ctx.reader().getSortedDocValues(FIELDS.id);
+            Bits liveDocs = ctx.reader().getLiveDocs();
+            int maxDoc = ctx.reader().maxDoc();
+            for (int doc = 0; slots != null && doc < maxDoc; doc++) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    int slot = (int) slots.get(doc);
+                    usedSlots.set(slot);
+                    maxSlot = Math.max(maxSlot, slot);
+                    addLiveSlot(ids.get(doc).utf8ToString(), slot);
+                }
+            }
+            for (int start = 0; start < maxDoc; start += LOAD_CHUNK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + LOAD_CHUNK_SIZE, maxDoc);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int count = loadCache(ctx.reader(), from, to, unslotted);
+                        synchronized (reporter) {
+                            reporter.progress(loadedCount.addAndGet(count), count);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        // slots must be allocated above any existing ones before we accept updates, and
+        // slots left unused by queries deleted before the last shutdown can be reused
+        nextSlot.set(maxSlot + 1);
+        for (int slot = usedSlots.nextClearBit(0); slot < maxSlot; slot = usedSlots.nextClearBit(slot + 1)) {
+            freeSlots.add(slot);
+        }
+        if (metrics != null) {
+            for (String queryId : liveSlots.keySet()) {
+                metrics.queryAdded(queryId);
+            }
+        }
+
+        final ExecutorService loadExecutor = Executors.newFixedThreadPool(Math.max(1, configureLoadThreads()));
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(loadExecutor.submit(task));
+        }
+        loadExecutor.shutdown();
+
+        Runnable finisher = new Runnable() {
             @Override
-            public void doMatch(int doc, String queryId, BytesRef hash) {
-                BytesRef serializedMQ = mqDV.get(doc);
-                MonitorQuery mq = MonitorQuery.deserialize(serializedMQ);
+            public void run() {
                 try {
-                    for (CacheEntry ce : decomposeQuery(mq)) {
-                        queries.put(ce.hash, ce);
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                    // queries indexed by an older version of luwak need to be re-added
+                    for (QueryError error : update(unslotted.values())) {
+                        loadErrors.add(new IOException(error.toString()));
                     }
-                } catch (Exception e) {
-                    parseErrors.add(e);
+                }
+                catch (Exception e) {
+                    loadErrors.add(e);
+                }
+                finally {
+                    try {
+                        manager.release(searcher);
+                    }
+                    catch (IOException e) {
+                        loadErrors.add(e);
+                    }
+                    reporter.finish(loadedCount.get(), 0);
+                    cacheLoaded.countDown();
                 }
             }
-        });
-
-        if (parseErrors.size() != 0)
-            throw new IOException("Error populating cache - some queries couldn't be parsed:" + parseErrors);}
+        };
 
-    /**
-     * @return Statistics for the internal query index and cache
-     */
-    public CacheStats getStats() {
-        return new CacheStats(this.writer.numDocs(), this.queries.size(), lastPurged);
+        if (configureBackgroundLoad()) {
+            Thread loader = new Thread(finisher, "luwak-cache-loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        else {
+            finisher.run();
+            waitForCacheLoad();
+        }
     }
 
-    private void commit(List<CacheEntry> updates) throws IOException {
-        purgeLock.readLock().lock();
-        try {
-            if (updates != null) {
-                for (CacheEntry update : updates) {
-                    this.queries.put(update.hash, update);
-                    if (purgeCache != null)
-                        purgeCache.put(update.hash, update);
+    // Load queries from a range of documents in a segment, returning the number of queries loaded
+    private int loadCache(LeafReader reader, int from, int to, Map<String, MonitorQuery> unslotted) throws IOException {
+        NumericDocValues slots = reader.getNumericDocValues(FIELDS.slot);
+        BinaryDocValues hashes = reader.getBinaryDocValues(FIELDS.hash);
+        BinaryDocValues mqs = reader.getBinaryDocValues(FIELDS.mq);
+        SortedDocValues ids = reader.getSortedDocValues(FIELDS.id);
+        BinaryDocValues snapshots = serializer == null ? null : reader.getBinaryDocValues(FIELDS.snapshot);
+        Bits liveDocs = reader.getLiveDocs();
+
+        // disjuncts of the same query are usually indexed together, so keep the last decomposition
+        MonitorQuery lastQuery = null;
+        Iterable<CacheEntry> lastEntries = Collections.emptyList();
+
+        int count = 0;
+        for (int doc = from; doc < to; doc++) {
+            if (liveDocs != null && !liveDocs.get(doc))
+                continue;
+            if (slots == null) {
+                unslotted.put(ids.get(doc).utf8ToString(), MonitorQuery.deserialize(mqs.get(doc)));
+                continue;
+            }
+            int slot = (int) slots.get(doc);
+            BytesRef hash = hashes.get(doc);
+            count++;
+            if (snapshots != null) {
+                CacheEntry entry = restoreSnapshot(ids.get(doc).utf8ToString(), hash, snapshots.get(doc));
+                if (entry != null) {
+                    queries.put(slot, entry);
+                    continue;
                 }
             }
-            writer.commit();
-            manager.maybeRefresh();
+            try {
+                MonitorQuery mq = MonitorQuery.deserialize(mqs.get(doc));
+                if (!mq.equals(lastQuery)) {
+                    lastEntries = decomposeQuery(mq);
+                    lastQuery = mq;
+                }
+                for (CacheEntry ce : lastEntries) {
+                    if (ce.hash.equals(hash))
+                        queries.put(slot, ce);
+                }
+            }
+            catch (Exception e) {
+                loadErrors.add(e);
+            }
         }
-        finally {
-            purgeLock.readLock().unlock();
+        return count;
+    }
+
+    // Serialize a parsed query, so that it can be restored without reparsing
+    private BytesRef snapshot(CacheEntry entry) {
+        if (serializer == null)
+            return null;
+        BytesRef matchQuery = serializer.serialize(entry.matchQuery);
+        BytesRef highlightQuery = entry.highlightQuery == null ? null : serializer.serialize(entry.highlightQuery);
+        if (matchQuery == null || (entry.highlightQuery != null && highlightQuery == null))
+            return null;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (OutputStreamDataOutput data = new OutputStreamDataOutput(os)) {
+            data.writeString(snapshotVersion);
+            writeBytesRef(matchQuery, data);
+            data.writeByte((byte) (highlightQuery == null ? 0 : 1));
+            if (highlightQuery != null)
+                writeBytesRef(highlightQuery, data);
+            return new BytesRef(os.toByteArray());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e); // shouldn't happen, we're writing to a bytearray!
+        }
+    }
+
+    // Restore a query from a snapshot, returning null if it was written by a different serializer
+    // or snapshot version
+    private CacheEntry restoreSnapshot(String queryId, BytesRef hash, BytesRef snapshot) {
+        if (snapshot == null || snapshot.length == 0)
+            return null;
+        ByteArrayInputStream is = new ByteArrayInputStream(snapshot.bytes, snapshot.offset, snapshot.length);
+        try (InputStreamDataInput data = new InputStreamDataInput(is)) {
+            if (!snapshotVersion.equals(data.readString()))
+                return null;
+            Query matchQuery = serializer.deserialize(readBytesRef(data));
+            Query highlightQuery = data.readByte() == 1 ? serializer.deserialize(readBytesRef(data)) : null;
+            return new CacheEntry(queryId, BytesRef.deepCopyOf(hash), matchQuery, highlightQuery, compileAutomata);
+        }
+        catch (IOException | RuntimeException e) {
+            // unreadable snapshot, fall back to reparsing the query
+            return null;
         }
     }
 
+    private static void writeBytesRef(BytesRef bytes, DataOutput data) throws IOException {
+        data.writeVInt(bytes.length);
+        data.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static BytesRef readBytesRef(DataInput data) throws IOException {
+        byte[] bytes = new byte[data.readVInt()];
+        data.readBytes(bytes, 0, bytes.length);
+        return new BytesRef(bytes);
+    }
+
+    // Parse a stored query and return the disjunct with the given hash.  If the cache is still
+    // being loaded in the background, the disjunct is also added to the cache
+    private CacheEntry loadEntry(MonitorQuery mq, BytesRef hash, int slot) throws Exception {
+        for (CacheEntry ce : decomposeQuery(mq)) {
+            if (ce.hash.equals(hash)) {
+                if (!isCacheLoaded())
+                    queries.put(slot, ce);
+                return ce;
+            }
+        }
+        return null;
+    }
+
     /**
-     * Remove unused queries from the query cache.
+     * Wait for the query cache to be populated from the queryindex.
      *
-     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     * If the Monitor is loading its cache in the background (see {@link #configureBackgroundLoad()}),
+     * this will block until loading is complete.  Queries that have not yet been loaded when a
+     * document is matched are parsed on demand.
      *
-     * @throws IOException on IO errors
+     * @throws IOException if some stored queries could not be loaded
      */
-    public synchronized void purgeCache() throws IOException {
+    public void waitForCacheLoad() throws IOException {
+        try {
+            cacheLoaded.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the query cache to load", e);
+        }
+        if (loadErrors.size() != 0)
+            throw new IOException("Error populating cache - some queries couldn't be parsed:" + loadErrors);
+    }
 
-        /*
-            Note on implementation
+    /**
+     * @return true if the query cache has been populated from the queryindex
+     */
+    public boolean isCacheLoaded() {
+        return cacheLoaded.getCount() == 0;
+    }
 
-            The purge works by scanning the query index and creating a new query cache populated
-            for each query in the index.  When the scan is complete, the old query cache is swapped
-            for the new, allowing it to be garbage-collected.
+    /**
+     * @return Statistics for the internal query index and cache
+     */
+    public CacheStats getStats() {
+        return new CacheStats(this.writer.numDocs(), queries.size(), lastPurged, queries.ramBytesUsed(),
+                pendingEvictionCount.get(), lastPurgeEvictions, rewriteHits.get(), rewriteMisses.get(),
+                queries.automatonRamBytesUsed());
+    }
 
-            In order to not drop cached queries that have been added while a purge is ongoing,
-            we use a ReadWriteLock to guard the creation and removal of an update log.  Commits take
-            the read lock.  If the update log has been created, then a purge is ongoing, and queries
-            are added to the update log within the read lock guard.
+    private void commit(Map<Integer, CacheEntry> updates, List<Integer> evictions) throws IOException {
+        if (updates != null) {
+            for (Map.Entry<Integer, CacheEntry> update : updates.entrySet()) {
+                this.queries.put(update.getKey(), update.getValue());
+            }
+        }
+        writer.commit();
+        manager.maybeRefreshBlocking();
+        // deleted queries are no longer visible to new searches, but searches using older
+        // readers may still select them, so they are evicted once those readers are closed
+        if (!evictions.isEmpty()) {
+            PendingEviction eviction = new PendingEviction(readerGeneration.get(), evictions);
+            pendingEvictionCount.addAndGet(eviction.slots.size());
+            pendingEvictions.add(eviction);
+        }
+    }
 
-            The purge takes the write lock when creating the update log, and then when swapping out
-            the old query cache.  Within the second write lock guard, the contents of the update log
-            are added to the new query cache, and the update log itself is removed.
-         */
+    // Slots deleted by a commit, which can be evicted once all readers older than the
+    // commit's reader generation have been closed
+    private static class PendingEviction {
 
-        final Map<BytesRef, CacheEntry> newCache = new ConcurrentHashMap<>();
+        final long generation;
+        final Set<Integer> slots;
 
-        purgeLock.writeLock().lock();
-        try {
-            purgeCache = new ConcurrentHashMap<>();
-        }
-        finally {
-            purgeLock.writeLock().unlock();
+        PendingEviction(long generation, Collection<Integer> slots) {
+            this.generation = generation;
+            this.slots = new HashSet<>(slots);
         }
+    }
 
-        match(new MatchAllDocsQuery(), new MonitorQueryCollector() {
+    // Record a new queryindex reader, so that we know when readers that can see deleted queries are closed
+    private void registerReader(IndexReader reader) {
+        final long generation = readerGeneration.incrementAndGet();
+        openReaders.add(generation);
+        reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
             @Override
-            protected void doMatch(int doc, String id, BytesRef hash) {
-                newCache.put(BytesRef.deepCopyOf(hash), queries.get(hash));
+            public void onClose(IndexReader reader) {
+                openReaders.remove(generation);
             }
         });
+    }
 
-        purgeLock.writeLock().lock();
-        try {
-            newCache.putAll(purgeCache);
-            purgeCache = null;
-            Monitor.this.queries = newCache;
-            lastPurged = System.nanoTime();
+    private void addLiveSlot(String queryId, int slot) {
+        List<Integer> slots = liveSlots.get(queryId);
+        if (slots == null) {
+            slots = new ArrayList<>();
+            liveSlots.put(queryId, slots);
         }
-        finally {
-            purgeLock.writeLock().unlock();
+        slots.add(slot);
+    }
+
+    private static ReentrantLock[] newLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
         }
+        return locks;
+    }
+
+    private ReentrantLock idLock(String queryId) {
+        return idLocks[(queryId.hashCode() & Integer.MAX_VALUE) % idLocks.length];
+    }
+
+    /**
+     * Remove unused queries from the query cache.
+     *
+     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     *
+     * Queries are not removed from the cache immediately on deletion, as searches that were
+     * started before the deletion was committed may still be using them.  Instead, the cache
+     * slots of deleted queries are recorded at commit time, and removed by the first purge after
+     * every queryindex reader that could still see them has been closed, so the cost of a purge
+     * is proportional to the number of queries deleted since the last one.
+     *
+     * @throws IOException on IO errors
+     */
+    public void purgeCache() throws IOException {
+        int evicted = 0;
+        Long oldestReader = openReaders.ceiling(Long.MIN_VALUE);
+        for (PendingEviction eviction : pendingEvictions) {
+            if (oldestReader != null && oldestReader < eviction.generation)
+                continue;
+            // a concurrent purge may already have claimed this eviction
+            if (!pendingEvictions.remove(eviction))
+                continue;
+            pendingEvictionCount.addAndGet(-eviction.slots.size());
+            for (int slot : eviction.slots) {
+                // no open reader can see the deleted query, so its slot can be reused
+                if (queries.remove(slot)) {
+                    freeSlots.add(slot);
+                    evicted++;
+                }
+            }
+        }
+        lastPurgeEvictions = evicted;
+        lastPurged = System.nanoTime();
     }
 
     /**
@@ -287,6 +652,116 @@ public class Monitor implements Closeable {
         return iwc;
     }
 
+    /**
+     * Configure the number of threads used to populate the query cache from an
+     * existing queryindex on startup.
+     *
+     * Default = the number of cores available to the JVM
+     *
+     * @return the number of threads
+     */
+    protected int configureLoadThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Configure whether the query cache is populated in the background on startup.
+     *
+     * If true, the constructor returns immediately, and the Monitor can be used while the
+     * cache is loading.  Use {@link #waitForCacheLoad()} to wait for loading to finish.
+     *
+     * Default = false
+     *
+     * @return true if the cache should be loaded in the background
+     */
+    protected boolean configureBackgroundLoad() {
+        return false;
+    }
+
+    /**
+     * Configure an UpdateReporter to keep track of the progress of populating the query
+     * cache on startup.  Its methods may be called from multiple threads.
+     *
+     * Default = a reporter that does nothing
+     *
+     * @return the UpdateReporter
+     */
+    protected UpdateReporter configureLoadReporter() {
+        return NULL_REPORTER;
+    }
+
+    /**
+     * Configure a QuerySerializer used to store a snapshot of each parsed query in the
+     * queryindex.  If set, the query cache can be repopulated from these snapshots on
+     * restart without reparsing the queries.  Queries without a snapshot, or whose snapshot
+     * was written by a different serializer or snapshot version, are reparsed.
+     *
+     * Default = null (no snapshots are stored)
+     *
+     * @return the QuerySerializer, or null
+     * @see #configureSnapshotVersion()
+     */
+    protected QuerySerializer configureQuerySerializer() {
+        return null;
+    }
+
+    /**
+     * Configure a version string recorded with each query snapshot.  Snapshots written with
+     * a different version are ignored, and their queries are reparsed.
+     *
+     * Snapshots hold queries as they were parsed and decomposed, so they become stale if the
+     * parser or decomposer configuration changes, for example if the parser's default field
+     * or analyzer is changed.  Override this to return a value that changes whenever that
+     * configuration does.
+     *
+     * Default = the class names of the query parser and decomposer
+     *
+     * @return the snapshot version
+     */
+    protected String configureSnapshotVersion() {
+        return queryParser.getClass().getName() + "/" + decomposer.getClass().getName();
+    }
+
+    /**
+     * Configure a {@link MonitorMetrics} listener to receive per-query and per-document
+     * timings as documents are matched.
+     *
+     * Default = null (no timings are recorded)
+     *
+     * @return the MonitorMetrics, or null
+     */
+    protected MonitorMetrics configureMetrics() {
+        return null;
+    }
+
+    /**
+     * Configure whether the automata of fuzzy queries are compiled when the queries are
+     * added to the query cache, rather than each time they are run against a document.
+     *
+     * Compiled fuzzy queries do not apply FuzzyQuery's per-term similarity boosts, so
+     * scoring matchers will report different scores for them.
+     *
+     * Default = false
+     *
+     * @return true if fuzzy query automata should be compiled ahead of time
+     * @see uk.co.flax.luwak.util.CompiledAutomatonQuery
+     */
+    protected boolean configureCompiledAutomata() {
+        return false;
+    }
+
+    /**
+     * Configure the maximum number of asynchronous matches that may be in progress at once.
+     *
+     * Default = twice the number of cores available to the JVM
+     *
+     * @return the maximum number of in-flight asynchronous matches
+     * @see #matchAsync(InputDocument, MatcherFactory, Executor)
+     */
+    protected int configureMaxInFlightMatches() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
     /**
      * Configure the frequency with which the query cache will be purged.
      *
@@ -315,7 +790,7 @@ public class Monitor implements Closeable {
     @Override
     public void close() throws IOException {
         purgeExecutor.shutdown();
-        IOUtils.closeWhileHandlingException(manager, writer, directory);
+        IOUtils.closeWhileHandlingException(termsFilter, manager, writer, directory);
     }
 
     /**
@@ -328,52 +803,178 @@ public class Monitor implements Closeable {
     public List<QueryError> update(Iterable<MonitorQuery> queries, UpdateReporter reporter) throws IOException {
 
         List<QueryError> errors = new ArrayList<>();
-        List<CacheEntry> updates = new ArrayList<>();
+        Map<Integer, CacheEntry> updates = new HashMap<>();
+        List<Integer> evictions = new ArrayList<>();
 
         int count = 0;
         for (MonitorQuery query : queries) {
             count++;
             try {
-                writer.deleteDocuments(new Term(FIELDS.del, query.getId()));
-                for (CacheEntry cacheEntry : decomposeQuery(query)) {
-                    updates.add(cacheEntry);
-                    writer.addDocument(buildIndexableQuery(query.getId(), query, cacheEntry));
-                }
+                indexQuery(query, updates, evictions);
             } catch (Exception e) {
                 errors.add(new QueryError(query.getId(), query.getQuery(), e.getMessage()));
             }
             if (updates.size() > commitBatchSize) {
-                commit(updates);
+                commit(updates, evictions);
                 reporter.progress(count, updates.size());
                 updates.clear();
+                evictions.clear();
             }
         }
 
-        commit(updates);
+        commit(updates, evictions);
         reporter.finish(count, updates.size());
         return errors;
     }
 
+    /* The number of queries added by each task in a parallel update */
+    private static final int UPDATE_CHUNK_SIZE = 100;
+
     /**
-     * Add new queries to the monitor
+     * Add new queries to the monitor, parsing and indexing them in parallel
+     *
+     * Queries are gathered into batches, and the queries in each batch are parsed, decomposed
+     * and added to the queryindex by tasks run on the passed-in executor.  Each batch is
+     * committed once all of its queries have been added.  If a batch contains more than one
+     * query with the same id, only the last one is added.
+     *
      * @param queries the MonitorQueries to add
+     * @param reporter an UpdateReporter to keep track of progress
+     * @param executor an ExecutorService to run the parsing and indexing tasks on
      * @return a list of exceptions for queries that could not be added
      * @throws IOException on IO errors
      */
-    public List<QueryError> update(Iterable<MonitorQuery> queries) throws IOException {
-        return update(queries, new UpdateReporter() {
-            @Override
-            public void progress(int total, int batchsize) {
+    public List<QueryError> update(Iterable<MonitorQuery> queries, UpdateReporter reporter,
+                                   ExecutorService executor) throws IOException {
 
+        List<QueryError> errors = new ArrayList<>();
+        Map<String, MonitorQuery> batch = new LinkedHashMap<>();
+
+        int count = 0;
+        for (MonitorQuery query : queries) {
+            count++;
+            batch.put(query.getId(), query);
+            if (batch.size() >= commitBatchSize) {
+                int batchsize = updateBatch(new ArrayList<>(batch.values()), executor, errors);
+                reporter.progress(count, batchsize);
+                batch.clear();
             }
+        }
 
-            @Override
-            public void finish(int total, int finalbatchsize) {
+        int batchsize = updateBatch(new ArrayList<>(batch.values()), executor, errors);
+        reporter.finish(count, batchsize);
+        return errors;
+    }
+
+    // Index and commit a batch of queries with distinct ids, returning the number of disjuncts added
+    private int updateBatch(List<MonitorQuery> batch, ExecutorService executor, List<QueryError> errors)
+            throws IOException {
 
+        final Map<Integer, CacheEntry> updates = new ConcurrentHashMap<>();
+        final List<Integer> evictions = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<QueryError> batchErrors = Collections.synchronizedList(new ArrayList<QueryError>());
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < batch.size(); start += UPDATE_CHUNK_SIZE) {
+                final List<MonitorQuery> chunk = batch.subList(start, Math.min(start + UPDATE_CHUNK_SIZE, batch.size()));
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (MonitorQuery query : chunk) {
+                            try {
+                                indexQuery(query, updates, evictions);
+                            } catch (Exception e) {
+                                batchErrors.add(new QueryError(query.getId(), query.getQuery(), e.getMessage()));
+                            }
+                        }
+                    }
+                }));
             }
-        });
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during update", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        commit(updates, evictions);
+        errors.addAll(batchErrors);
+        return updates.size();
+    }
+
+    // Replace any existing version of a query in the queryindex.  The slots of the replaced version, and
+    // of any disjuncts added before indexing fails, are evicted once no open reader can select them
+    private void indexQuery(MonitorQuery query, Map<Integer, CacheEntry> updates,
+                            List<Integer> evictions) throws Exception {
+        String id = query.getId();
+        Term delTerm = new Term(FIELDS.del, id);
+        ReentrantLock lock = idLock(id);
+        lock.lock();
+        try {
+            List<Integer> replaced = liveSlots.remove(id);
+            if (replaced != null) {
+                evictions.addAll(replaced);
+                for (QueryListener listener : queryListeners) {
+                    listener.queryReplaced(id);
+                }
+            }
+            writer.deleteDocuments(delTerm);
+            List<Integer> slots = new ArrayList<>();
+            try {
+                for (CacheEntry cacheEntry : decomposeQuery(query)) {
+                    int slot = allocateSlot();
+                    slots.add(slot);
+                    updates.put(slot, cacheEntry);
+                    writer.addDocument(buildIndexableQuery(id, query, cacheEntry, slot));
+                }
+            }
+            catch (Exception e) {
+                writer.deleteDocuments(delTerm);
+                evictions.addAll(slots);
+                throw e;
+            }
+            liveSlots.put(id, slots);
+            if (metrics != null)
+                metrics.queryAdded(id);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private int allocateSlot() {
+        Integer slot = freeSlots.poll();
+        return slot == null ? nextSlot.getAndIncrement() : slot;
     }
 
+    /**
+     * Add new queries to the monitor
+     * @param queries the MonitorQueries to add
+     * @return a list of exceptions for queries that could not be added
+     * @throws IOException on IO errors
+     */
+    public List<QueryError> update(Iterable<MonitorQuery> queries) throws IOException {
+        return update(queries, NULL_REPORTER);
+    }
+
+    static final UpdateReporter NULL_REPORTER = new UpdateReporter() {
+        @Override
+        public void progress(int total, int batchsize) {
+
+        }
+
+        @Override
+        public void finish(int total, int finalbatchsize) {
+
+        }
+    };
+
     /**
      * Interface for callback reporters that keep track of the progress of an update
      */
@@ -394,6 +995,34 @@ public class Monitor implements Closeable {
         void finish(int total, int finalbatchsize);
     }
 
+    /**
+     * Register a listener to be told when queries are replaced or deleted
+     * @param listener the listener
+     */
+    public void addQueryListener(QueryListener listener) {
+        queryListeners.add(listener);
+    }
+
+    /**
+     * Interface for listeners that hold state about individual queries, such as a
+     * {@link uk.co.flax.luwak.matchers.QueryCostModel}, and need to forget it when
+     * a query changes.  Methods may be called from multiple threads.
+     */
+    public static interface QueryListener {
+
+        /**
+         * Called when a new version of an existing query is added
+         * @param queryId the query id
+         */
+        void queryReplaced(String queryId);
+
+        /**
+         * Called after a query has been deleted
+         * @param queryId the query id
+         */
+        void queryDeleted(String queryId);
+    }
+
     private Iterable<CacheEntry> decomposeQuery(MonitorQuery query) throws Exception {
 
         Query q = queryParser.parse(query.getQuery(), query.getMetadata());
@@ -408,7 +1037,7 @@ public class Monitor implements Closeable {
             BytesRefBuilder subHash = new BytesRefBuilder();
             subHash.append(rootHash);
             subHash.append(new BytesRef("_" + upto++));
-            cacheEntries.add(new CacheEntry(subHash.toBytesRef(), subquery, hq));
+            cacheEntries.add(new CacheEntry(query.getId(), subHash.toBytesRef(), subquery, hq, compileAutomata));
         }
 
         return cacheEntries;
@@ -430,10 +1059,11 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void delete(Iterable<MonitorQuery> queries) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (MonitorQuery mq : queries) {
-            writer.deleteDocuments(new Term(Monitor.FIELDS.del, mq.getId()));
+            ids.add(mq.getId());
         }
-        commit(null);
+        deleteById(ids);
     }
 
     /**
@@ -442,10 +1072,32 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void deleteById(Iterable<String> queryIds) throws IOException {
+        List<Integer> evictions = new ArrayList<>();
         for (String queryId : queryIds) {
-            writer.deleteDocuments(new Term(FIELDS.del, queryId));
+            ReentrantLock lock = idLock(queryId);
+            lock.lock();
+            try {
+                List<Integer> slots = liveSlots.remove(queryId);
+                if (slots != null)
+                    evictions.addAll(slots);
+                writer.deleteDocuments(new Term(FIELDS.del, queryId));
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        commit(null, evictions);
+        for (String queryId : queryIds) {
+            queryDeleted(queryId);
+        }
+    }
+
+    private void queryDeleted(String queryId) {
+        if (metrics != null)
+            metrics.queryDeleted(queryId);
+        for (QueryListener listener : queryListeners) {
+            listener.queryDeleted(queryId);
         }
-        commit(null);
     }
 
     /**
@@ -462,14 +1114,70 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void clear() throws IOException {
-        writer.deleteDocuments(new MatchAllDocsQuery());
-        commit(null);
+        List<Integer> evictions = new ArrayList<>();
+        Set<String> queryIds = new HashSet<>();
+        for (ReentrantLock lock : idLocks) {
+            lock.lock();
+        }
+        try {
+            for (Map.Entry<String, List<Integer>> entry : liveSlots.entrySet()) {
+                queryIds.add(entry.getKey());
+                evictions.addAll(entry.getValue());
+            }
+            liveSlots.clear();
+            writer.deleteDocuments(new MatchAllDocsQuery());
+        }
+        finally {
+            for (ReentrantLock lock : idLocks) {
+                lock.unlock();
+            }
+        }
+        commit(null, evictions);
+        for (String queryId : queryIds) {
+            queryDeleted(queryId);
+        }
+    }
+
+    // Called on construction and from the SearcherManager's refresh listener, so never concurrently
+    private void refreshTermsFilter() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            registerReader(searcher.getIndexReader());
+            TermsEnumFilter old = termsFilter;
+            termsFilter = new TermsEnumFilter(searcher.getIndexReader());
+            if (old != null)
+                old.close();
+            presearcher.onRefresh(searcher.getIndexReader());
+        }
+        finally {
+            manager.release(searcher);
+        }
+    }
+
+    private TermsEnumFilter acquireTermsFilter() {
+        while (true) {
+            TermsEnumFilter filter = termsFilter;
+            if (filter.tryIncRef())
+                return filter;
+            // if tryIncRef() fails, then the filter has either been swapped out by a refresh,
+            // in which case we try again with the new one, or closed along with the Monitor
+            if (filter == termsFilter)
+                throw new AlreadyClosedException("this Monitor is closed");
+        }
     }
 
     Query buildQuery(InputDocument doc) throws IOException {
-        try (TermsEnumFilter filter = new TermsEnumFilter(writer)) {
+        TermsEnumFilter filter = acquireTermsFilter();
+        try {
             return presearcher.buildQuery(doc, filter);
         }
+        finally {
+            filter.decRef();
+        }
+    }
+
+    private Query buildQuery(InputDocument doc, PerFieldTokenFilter filter) throws IOException {
+        return presearcher.buildQuery(doc, filter);
     }
 
     /**
@@ -488,34 +1196,209 @@ public class Monitor implements Closeable {
         return matcher.getMatches();
     }
 
+    /**
+     * Match all the documents in an {@link InputBatch} against the queryindex.
+     *
+     * The presearcher selects candidate queries using the terms from every document
+     * in the batch, and each candidate query is run once over the whole batch.
+     *
+     * The {@link CandidateMatcher} produced by the supplied {@link MatcherFactory}
+     * must be able to report matches for individual documents in a batch, as
+     * {@link uk.co.flax.luwak.matchers.CollectingMatcher} subclasses do.
+     *
+     * @param batch the InputBatch to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the batch
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a Map of document id to {@link Matches}, in the order the documents were added to the batch
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> Map<String, Matches<T>> match(InputBatch batch, MatcherFactory<T> factory)
+            throws IOException {
+        CandidateMatcher<T> matcher = factory.createMatcher(batch);
+        if (!matcher.supportsBatches())
+            throw new IllegalArgumentException(matcher.getClass().getName() + " cannot match InputBatches");
+        matcher.setSlowLogLimit(slowLogLimit);
+        match(matcher);
+        return matcher.getBatchMatches();
+    }
+
     private void match(InputDocument doc, MonitorQueryCollector collector) throws IOException {
         match(buildQuery(doc), collector);
     }
 
+    /**
+     * Asynchronously match an {@link InputDocument} against the queryindex.
+     *
+     * The presearcher query is built and run as one task on the supplied executor, and the
+     * selected candidate queries are then run against the document as a second task, so
+     * the presearcher run for one document can overlap with candidate matching for another.
+     *
+     * At most {@link #configureMaxInFlightMatches()} asynchronous matches may be in progress
+     * at once.  If this limit is reached, this method blocks until an earlier match completes.
+     *
+     * @param doc the InputDocument to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
+     * @param executor an Executor to run the presearcher and matching tasks on
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a Future that will hold the {@link Matches} for the document
+     * @throws IOException if interrupted while waiting for an earlier match to complete
+     */
+    public <T extends QueryMatch> Future<Matches<T>> matchAsync(InputDocument doc, MatcherFactory<T> factory,
+                                                                final Executor executor) throws IOException {
+
+        final CandidateMatcher<T> matcher = factory.createMatcher(doc);
+        matcher.setSlowLogLimit(slowLogLimit);
+        final CandidateCollector collector = new CandidateCollector();
+        // presearcher query build time and candidate selection time, in nanoseconds
+        final long[] times = new long[]{ 0, 0 };
+        final Exception[] presearchError = new Exception[]{ null };
+
+        final FutureTask<Matches<T>> matchTask = new FutureTask<Matches<T>>(new Callable<Matches<T>>() {
+            @Override
+            public Matches<T> call() throws Exception {
+                if (presearchError[0] != null)
+                    throw presearchError[0];
+                long start = System.nanoTime();
+                collector.matchCandidates(matcher);
+                matcher.finish(times[0] / 1000000, collector.getQueryCount());
+                reportMetrics(matcher, collector, times[0], times[1] + System.nanoTime() - start);
+                return matcher.getMatches();
+            }
+        }) {
+
+            private final AtomicBoolean released = new AtomicBoolean(false);
+
+            @Override
+            protected void done() {
+                // called when the task completes or fails, and also if it is cancelled before it runs
+                if (released.compareAndSet(false, true))
+                    inFlightMatches.release();
+            }
+        };
+
+        final Runnable presearchTask = new Runnable() {
+            @Override
+            public void run() {
+                if (matchTask.isCancelled())
+                    return;
+                try {
+                    long start = System.nanoTime();
+                    Query query = buildQuery(matcher.getDocument());
+                    times[0] = System.nanoTime() - start;
+                    match(query, collector);
+                    times[1] = System.nanoTime() - start - times[0];
+                }
+                catch (Exception e) {
+                    presearchError[0] = e;
+                }
+                try {
+                    executor.execute(matchTask);
+                }
+                catch (RejectedExecutionException e) {
+                    matchTask.run();
+                }
+            }
+        };
+
+        try {
+            inFlightMatches.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to match document " + doc.getId(), e);
+        }
+        try {
+            executor.execute(presearchTask);
+        }
+        catch (RejectedExecutionException e) {
+            matchTask.cancel(false);
+            throw e;
+        }
+        return matchTask;
+    }
+
     private <T extends QueryMatch> void match(CandidateMatcher<T> matcher) throws IOException {
 
-        long buildTime = System.nanoTime();
+        long start = System.nanoTime();
         Query query = buildQuery(matcher.getDocument());
-        buildTime = (System.nanoTime() - buildTime) / 1000000;
+        long buildTime = System.nanoTime() - start;
 
         MatchingCollector<T> collector = new MatchingCollector<>(matcher);
         match(query, collector);
-        matcher.finish(buildTime, collector.getQueryCount());
+        collector.rewrites.flush();
+        matcher.finish(buildTime / 1000000, collector.getQueryCount());
+        reportMetrics(matcher, collector, buildTime, System.nanoTime() - start - buildTime);
+
+    }
 
+    private <T extends QueryMatch> void reportMetrics(CandidateMatcher<T> matcher, MonitorQueryCollector collector,
+                                                      long buildTime, long matchTime) {
+        if (metrics != null)
+            metrics.documentMatched(matcher.getDocument().getId(), collector.getQueryCount(),
+                                    collector.getAnyTokenCount(), matcher.getMatches().getMatchCount(),
+                                    buildTime, matchTime);
+    }
+
+    // Counts rewrite cache hits and misses for a single document, so that the shared
+    // counters are only updated once per document rather than once per candidate
+    private class RewriteCounter {
+
+        int hits, misses;
+
+        void count(CacheEntry entry) {
+            if (entry.prepared)
+                hits++;
+            else
+                misses++;
+        }
+
+        void flush() {
+            if (hits > 0)
+                rewriteHits.addAndGet(hits);
+            if (misses > 0)
+                rewriteMisses.addAndGet(misses);
+            hits = misses = 0;
+        }
+
+    }
+
+    // Run a single candidate query, reporting its match time to the metrics listener if there is one
+    private <T extends QueryMatch> void runQuery(CandidateMatcher<T> matcher, CacheEntry entry,
+                                                 RewriteCounter rewrites) throws IOException {
+        rewrites.count(entry);
+        if (metrics == null) {
+            matcher.matchQuery(entry.queryId, entry.preparedMatchQuery, entry.preparedHighlightQuery);
+            return;
+        }
+        if (matcher.defersMatching()) {
+            // the query is only queued here; the matcher reports its time when it is run
+            matcher.setMetrics(metrics);
+            matcher.matchQuery(entry.queryId, entry.preparedMatchQuery, entry.preparedHighlightQuery);
+            return;
+        }
+        long start = System.nanoTime();
+        T match = matcher.matchQuery(entry.queryId, entry.preparedMatchQuery, entry.preparedHighlightQuery);
+        metrics.queryRun(entry.queryId, System.nanoTime() - start, match != null);
     }
 
     private void match(Query query, MonitorQueryCollector collector) throws IOException {
         IndexSearcher searcher = null;
         try {
             searcher = manager.acquire();
-            collector.setQueryMap(this.queries);
-            searcher.search(query, collector);
+            match(query, collector, searcher);
         }
         finally {
             manager.release(searcher);
         }
     }
 
+    private void match(Query query, MonitorQueryCollector collector, IndexSearcher searcher) throws IOException {
+        collector.setQueryMap(this.queries);
+        // the ANYTOKEN queries are only needed to report metrics, and may be costly to find
+        collector.setPresearcher(metrics == null ? null : this.presearcher);
+        searcher.search(query, collector);
+    }
+
     /**
      * Get the MonitorQuery for a given query id
      * @param queryId the id of the query to get
@@ -526,7 +1409,7 @@ public class Monitor implements Closeable {
         final MonitorQuery[] queryHolder = new MonitorQuery[]{ null };
         match(new TermQuery(new Term(FIELDS.id, queryId)), new MonitorQueryCollector() {
             @Override
-            public void doMatch(int doc, String queryId, BytesRef hash) {
+            public void doMatch(int doc, int slot) {
                 BytesRef serializedMQ = mqDV.get(doc);
                 queryHolder[0] = MonitorQuery.deserialize(serializedMQ);
             }
@@ -549,8 +1432,8 @@ public class Monitor implements Closeable {
         final Set<String> ids = new HashSet<>();
         match(new MatchAllDocsQuery(), new MonitorQueryCollector() {
             @Override
-            public void doMatch(int doc, String queryId, BytesRef hash) {
-                ids.add(queryId);
+            public void doMatch(int doc, int slot) {
+                ids.add(getQueryId(doc));
             }
         });
         return ids.size();
@@ -569,37 +1452,160 @@ public class Monitor implements Closeable {
             debug(InputDocument doc, MatcherFactory<T> factory) throws IOException {
         PresearcherMatchCollector<T> collector = new PresearcherMatchCollector<>(factory.createMatcher(doc));
         match(doc, collector);
+        collector.rewrites.flush();
         return collector.getMatches();
     }
 
-    protected Document buildIndexableQuery(String id, MonitorQuery mq, CacheEntry query) {
+    /**
+     * Profile the presearcher over a corpus of documents, recording how often each queryindex
+     * term selects a candidate query, and how often that candidate goes on to match.
+     *
+     * Use this to find terms and queries with many false-positive selections.
+     *
+     * @param docs the InputDocuments to profile
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for each document
+     * @param <T> the type of QueryMatch produced by the CandidateMatcher
+     * @return a PresearcherProfile
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> PresearcherProfile profile(Iterable<InputDocument> docs,
+                                                             MatcherFactory<T> factory) throws IOException {
+        PresearcherProfile profile = new PresearcherProfile();
+        TermsEnumFilter filter = acquireTermsFilter();
+        IndexSearcher searcher = null;
+        try {
+            searcher = manager.acquire();
+            for (InputDocument doc : docs) {
+                profile(doc, factory.createMatcher(doc), filter, searcher, profile);
+            }
+        }
+        finally {
+            filter.decRef();
+            if (searcher != null)
+                manager.release(searcher);
+        }
+        return profile;
+    }
+
+    private <T extends QueryMatch> void profile(InputDocument doc, CandidateMatcher<T> matcher, PerFieldTokenFilter filter,
+                                                IndexSearcher searcher, PresearcherProfile profile) throws IOException {
+
+        Query query = buildQuery(doc, filter);
+        CandidateCollector candidates = new CandidateCollector();
+        match(query, candidates, searcher);
+        candidates.matchCandidates(matcher);
+        matcher.finish(0, candidates.getQueryCount());
+        Matches<T> matches = matcher.getMatches();
+
+        Set<String> candidateIds = new HashSet<>();
+        for (CacheEntry entry : candidates.entries) {
+            if (candidateIds.add(entry.queryId))
+                profile.recordQuerySelection(entry.queryId, matches.matches(entry.queryId) != null);
+        }
+
+        Set<Term> terms = new HashSet<>();
+        try {
+            query.extractTerms(terms);
+        }
+        catch (UnsupportedOperationException e) {
+            // the presearcher query contains clauses we can't attribute to individual terms
+        }
+        for (Term term : terms) {
+            final Set<String> selected = new HashSet<>();
+            match(new TermQuery(term), new MonitorQueryCollector() {
+                @Override
+                protected void doMatch(int doc, int slot) throws IOException {
+                    selected.add(getQueryId(doc));
+                }
+            }, searcher);
+            for (String queryId : selected) {
+                // only count queries that made it through any other clauses of the presearcher query
+                if (candidateIds.contains(queryId))
+                    profile.recordTermSelection(term, matches.matches(queryId) != null);
+            }
+        }
+
+        profile.recordDocument();
+    }
+
+    protected Document buildIndexableQuery(String id, MonitorQuery mq, CacheEntry query, int slot) {
         Document doc = presearcher.indexQuery(query.matchQuery, mq.getMetadata());
         doc.add(new StringField(FIELDS.id, id, Field.Store.NO));
         doc.add(new StringField(FIELDS.del, id, Field.Store.NO));
         doc.add(new SortedDocValuesField(FIELDS.id, new BytesRef(id)));
         doc.add(new BinaryDocValuesField(FIELDS.hash, query.hash));
+        doc.add(new NumericDocValuesField(FIELDS.slot, slot));
         doc.add(new BinaryDocValuesField(FIELDS.mq, MonitorQuery.serialize(mq)));
+        BytesRef snapshot = snapshot(query);
+        if (snapshot != null)
+            doc.add(new BinaryDocValuesField(FIELDS.snapshot, snapshot));
         return doc;
     }
 
     // For each query selected by the presearcher, pass on to a CandidateMatcher
-    private static class MatchingCollector<T extends QueryMatch> extends MonitorQueryCollector {
+    private class MatchingCollector<T extends QueryMatch> extends MonitorQueryCollector {
 
         final CandidateMatcher<T> matcher;
+        final RewriteCounter rewrites = new RewriteCounter();
 
         private MatchingCollector(CandidateMatcher<T> matcher) {
             this.matcher = matcher;
         }
 
         @Override
-        protected void doMatch(int doc, String queryId, BytesRef hash) throws IOException {
+        protected void doMatch(int doc, int slot) throws IOException {
+            CacheEntry entry = null;
+            try {
+                entry = getEntry(this, doc, slot);
+                runQuery(matcher, entry, rewrites);
+            }
+            catch (Exception e) {
+                matcher.reportError(new MatchError(entry == null ? getQueryId(doc) : entry.queryId, e));
+            }
+        }
+
+    }
+
+    // Get the cache entry for a query selected by a collector
+    private CacheEntry getEntry(MonitorQueryCollector collector, int doc, int slot) throws Exception {
+        CacheEntry entry = queries.get(slot);
+        if (entry == null && slot >= 0) {
+            // not loaded into the cache yet, so parse it now
+            entry = loadEntry(MonitorQuery.deserialize(collector.mqDV.get(doc)), collector.hashDV.get(doc), slot);
+        }
+        return entry;
+    }
+
+    // For each query selected by the presearcher, record the query so that it can be run later
+    private class CandidateCollector extends MonitorQueryCollector {
+
+        final List<CacheEntry> entries = new ArrayList<>();
+        final List<MatchError> errors = new ArrayList<>();
+        final RewriteCounter rewrites = new RewriteCounter();
+
+        @Override
+        protected void doMatch(int doc, int slot) throws IOException {
             try {
-                CacheEntry entry = queries.get(hash);
-                matcher.matchQuery(queryId, entry.matchQuery, entry.highlightQuery);
+                entries.add(getEntry(this, doc, slot));
             }
             catch (Exception e) {
-                matcher.reportError(new MatchError(queryId, e));
+                errors.add(new MatchError(getQueryId(doc), e));
+            }
+        }
+
+        <T extends QueryMatch> void matchCandidates(CandidateMatcher<T> matcher) {
+            for (MatchError error : errors) {
+                matcher.reportError(error);
             }
+            for (CacheEntry entry : entries) {
+                try {
+                    runQuery(matcher, entry, rewrites);
+                }
+                catch (Exception e) {
+                    matcher.reportError(new MatchError(entry.queryId, e));
+                }
+            }
+            rewrites.flush();
         }
 
     }
@@ -610,34 +1616,85 @@ public class Monitor implements Closeable {
     public static abstract class MonitorQueryCollector extends SimpleCollector {
 
         protected BinaryDocValues hashDV;
+        protected NumericDocValues slotDV;
         protected SortedDocValues idDV;
         protected BinaryDocValues mqDV;
         protected LeafReader reader;
 
-        protected Map<BytesRef, CacheEntry> queries;
+        protected QueryCache queries;
+
+        private Presearcher presearcher;
 
-        void setQueryMap(Map<BytesRef, CacheEntry> queries) {
+        /* Queries in the current segment that are selected for every document */
+        private Bits anyTokenQueries;
+
+        void setQueryMap(QueryCache queries) {
             this.queries = queries;
         }
 
+        void setPresearcher(Presearcher presearcher) {
+            this.presearcher = presearcher;
+        }
+
         protected int queryCount = 0;
 
+        protected int anyTokenCount = 0;
+
         @Override
         public void collect(int doc) throws IOException {
-            BytesRef hash = hashDV.get(doc);
-            BytesRef id = idDV.get(doc);
+            int slot = slotDV == null ? -1 : (int) slotDV.get(doc);
             queryCount++;
-            doMatch(doc, id.utf8ToString(), hash);
+            if (anyTokenQueries != null && anyTokenQueries.get(doc))
+                anyTokenCount++;
+            doMatch(doc, slot);
+        }
+
+        /**
+         * Called for each query selected by the search
+         *
+         * The default implementation decodes the query's id and hash, and passes them to
+         * {@link #doMatch(int, String, BytesRef)}.  Override this method instead to avoid
+         * decoding them for every selected query.
+         *
+         * @param doc the query's docid in the current segment
+         * @param slot the query's slot in the query cache, or -1 if it has not been assigned one
+         * @throws IOException on IO errors
+         */
+        protected void doMatch(int doc, int slot) throws IOException {
+            doMatch(doc, getQueryId(doc), hashDV.get(doc));
         }
 
-        protected abstract void doMatch(int doc, String queryId, BytesRef queryHash) throws IOException;
+        /**
+         * Called for each query selected by the search, if {@link #doMatch(int, int)} is not overridden
+         * @param doc the query's docid in the current segment
+         * @param queryId the query's id
+         * @param queryHash the query's hash
+         * @throws IOException on IO errors
+         * @deprecated override {@link #doMatch(int, int)}, and use {@link #getQueryId(int)} to
+         *              decode the query id only when it is needed
+         */
+        @Deprecated
+        protected void doMatch(int doc, String queryId, BytesRef queryHash) throws IOException {
+            throw new UnsupportedOperationException("MonitorQueryCollector subclasses must override doMatch(int, int)");
+        }
+
+        /**
+         * Decode the id of a query selected by the search
+         * @param doc the query's docid in the current segment
+         * @return the query id
+         */
+        protected String getQueryId(int doc) {
+            return idDV.get(doc).utf8ToString();
+        }
 
         @Override
         public void doSetNextReader(LeafReaderContext context) throws IOException {
             this.reader = context.reader();
             this.hashDV = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+            this.slotDV = context.reader().getNumericDocValues(FIELDS.slot);
             this.idDV = context.reader().getSortedDocValues(FIELDS.id);
             this.mqDV = context.reader().getBinaryDocValues(FIELDS.mq);
+            this.anyTokenQueries = presearcher == null ? null : presearcher.getAnyTokenQueries(context.reader());
         }
 
         @Override
@@ -649,9 +1706,17 @@ public class Monitor implements Closeable {
             return queryCount;
         }
 
+        /**
+         * @return the number of selected queries that are selected for every document,
+         *         rather than by a term from the document
+         */
+        public int getAnyTokenCount() {
+            return anyTokenCount;
+        }
+
     }
 
-    private static class PresearcherMatchCollector<T extends QueryMatch>
+    private class PresearcherMatchCollector<T extends QueryMatch>
             extends MatchingCollector<T> implements IntervalCollector {
 
         private IntervalIterator positions;
@@ -669,16 +1734,16 @@ public class Monitor implements Closeable {
         }
 
         @Override
-        protected void doMatch(int doc, String queryId, BytesRef hash) throws IOException {
+        protected void doMatch(int doc, int slot) throws IOException {
 
-            currentId = queryId;
+            currentId = getQueryId(doc);
             document = reader.document(doc);
             positions.scorerAdvanced(doc);
             while (positions.next() != null) {
                 positions.collect(this);
             }
 
-            super.doMatch(doc, queryId, hash);
+            super.doMatch(doc, slot);
         }
 
         @Override
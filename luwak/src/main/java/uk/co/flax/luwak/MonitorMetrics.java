@@ -0,0 +1,70 @@
+package uk.co.flax.luwak;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receives timing information from a {@link Monitor} as documents are matched.
+ *
+ * Implementations are called from the matching threads, and so must be thread-safe
+ * and cheap.
+ *
+ * Per-query times are measured around the call to
+ * {@link CandidateMatcher#matchQuery(String, org.apache.lucene.search.Query, org.apache.lucene.search.Query)}.
+ * Matchers that defer matching until {@link CandidateMatcher#finish(long, int)}, such as
+ * the multithreaded matchers, instead report the time taken by their sub-matchers, from
+ * their worker threads.
+ *
+ * @see Monitor#configureMetrics()
+ * @see uk.co.flax.luwak.metrics.RecordingMonitorMetrics
+ */
+public interface MonitorMetrics {
+
+    /**
+     * Called after a query has been added to the Monitor, or loaded from its queryindex
+     * on startup.  Replacing a query with a new version also calls this.
+     * @param queryId the query id
+     */
+    void queryAdded(String queryId);
+
+    /**
+     * Called after a candidate query has been run against a document
+     * @param queryId the query id
+     * @param nanos the time taken to run the query, in nanoseconds
+     * @param matched true if the query matched the document
+     */
+    void queryRun(String queryId, long nanos, boolean matched);
+
+    /**
+     * Called after a query has been deleted from the Monitor
+     * @param queryId the query id
+     */
+    void queryDeleted(String queryId);
+
+    /**
+     * Called after a document has been matched against the Monitor
+     * @param docId the document id
+     * @param candidates the number of candidate queries selected by the presearcher
+     * @param anyTokenCandidates the number of candidate queries that are selected for every
+     *                           document, rather than by a term from the document
+     * @param matches the number of queries that matched the document
+     * @param presearchNanos the time taken to build the presearcher query, in nanoseconds
+     * @param matchNanos the time taken to select and run the candidate queries, in nanoseconds
+     */
+    void documentMatched(String docId, int candidates, int anyTokenCandidates, int matches,
+                         long presearchNanos, long matchNanos);
+
+}
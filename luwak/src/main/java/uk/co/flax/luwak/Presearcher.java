@@ -1,9 +1,13 @@
 package uk.co.flax.luwak;
 
+import java.io.IOException;
 import java.util.Map;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Bits;
 import uk.co.flax.luwak.presearcher.PerFieldTokenFilter;
 
 /**
@@ -62,4 +66,25 @@ public abstract class Presearcher {
         return this.indexQuery(query, null);
     }
 
+    /**
+     * Called by the Monitor whenever its queryindex is refreshed, so that the
+     * presearcher can update any caches it holds over the index.
+     * @param reader an IndexReader over the new view of the queryindex
+     * @throws IOException on IO errors
+     */
+    public void onRefresh(IndexReader reader) throws IOException {
+
+    }
+
+    /**
+     * Get the queries in a segment of the queryindex that the presearcher selects
+     * for every document, regardless of its content.
+     * @param reader the segment reader
+     * @return the queries' docids, or null if not known
+     * @throws IOException on IO errors
+     */
+    public Bits getAnyTokenQueries(LeafReader reader) throws IOException {
+        return null;
+    }
+
 }
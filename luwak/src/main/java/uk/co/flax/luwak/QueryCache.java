@@ -0,0 +1,135 @@
+package uk.co.flax.luwak;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A cache of parsed queries, keyed by the integer slot assigned to each
+ * query disjunct when it is added to the Monitor's queryindex.
+ *
+ * Slots are allocated densely, and the slots of purged queries are reused, so the
+ * cache is backed by a plain array sized by the peak number of live disjuncts.
+ * Lookups are lock-free and do not allocate; writes are synchronized, and grow the
+ * array as needed.
+ */
+final class QueryCache {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile AtomicReferenceArray<Monitor.CacheEntry> entries;
+
+    private int size = 0;
+
+    private long automatonRamBytesUsed = 0;
+
+    QueryCache(int capacity) {
+        this.entries = new AtomicReferenceArray<>(Math.max(capacity, 1));
+    }
+
+    QueryCache() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Get the entry stored in a slot
+     * @param slot the slot
+     * @return the CacheEntry stored in the slot, or null if the slot is empty
+     */
+    Monitor.CacheEntry get(int slot) {
+        AtomicReferenceArray<Monitor.CacheEntry> current = entries;
+        if (slot < 0 || slot >= current.length())
+            return null;
+        return current.get(slot);
+    }
+
+    /**
+     * Store an entry in a slot, replacing any existing entry
+     * @param slot the slot
+     * @param entry the CacheEntry
+     */
+    synchronized void put(int slot, Monitor.CacheEntry entry) {
+        if (entry == null)
+            return;
+        if (slot >= entries.length()) {
+            AtomicReferenceArray<Monitor.CacheEntry> grown = new AtomicReferenceArray<>(
+                    ArrayUtil.oversize(slot + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+            for (int i = 0; i < entries.length(); i++) {
+                grown.set(i, entries.get(i));
+            }
+            entries = grown;
+        }
+        Monitor.CacheEntry previous = entries.getAndSet(slot, entry);
+        if (previous == null)
+            size++;
+        else
+            automatonRamBytesUsed -= previous.automatonRamBytesUsed;
+        automatonRamBytesUsed += entry.automatonRamBytesUsed;
+    }
+
+    /**
+     * Remove the entry stored in a slot
+     * @param slot the slot
+     * @return true if the slot contained an entry
+     */
+    synchronized boolean remove(int slot) {
+        if (slot < 0 || slot >= entries.length())
+            return false;
+        Monitor.CacheEntry previous = entries.getAndSet(slot, null);
+        if (previous == null)
+            return false;
+        size--;
+        automatonRamBytesUsed -= previous.automatonRamBytesUsed;
+        return true;
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate memory used by multi-term query automata compiled for the
+     *         cached queries
+     */
+    synchronized long automatonRamBytesUsed() {
+        return automatonRamBytesUsed;
+    }
+
+    /**
+     * @return the number of slots the cache can hold without growing
+     */
+    int capacity() {
+        return entries.length();
+    }
+
+    /**
+     * @return the approximate memory used by the cache's slot table, not including
+     *         the cached queries themselves
+     */
+    long ramBytesUsed() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER * 2
+                + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                + (long) capacity() * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    }
+
+}
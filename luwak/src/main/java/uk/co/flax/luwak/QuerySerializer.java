@@ -0,0 +1,51 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Interface for converting parsed queries to and from a compact binary form.
+ *
+ * If a Monitor is configured with a QuerySerializer, it stores a snapshot of
+ * each parsed and decomposed query alongside the query in its queryindex, and
+ * uses the snapshot to populate its query cache on restart without calling the
+ * {@link MonitorQueryParser}.  Queries without a usable snapshot are re-parsed.
+ *
+ * @see uk.co.flax.luwak.Monitor#configureQuerySerializer()
+ */
+public interface QuerySerializer {
+
+    /**
+     * Serialize a query
+     * @param query the query to serialize
+     * @return the serialized form of the query, or null if the query cannot be serialized
+     */
+    BytesRef serialize(Query query);
+
+    /**
+     * Deserialize a query
+     * @param bytes the serialized form of the query, as returned by {@link #serialize(Query)}
+     * @return the deserialized query
+     * @throws IOException if the query cannot be deserialized
+     */
+    Query deserialize(BytesRef bytes) throws IOException;
+
+}
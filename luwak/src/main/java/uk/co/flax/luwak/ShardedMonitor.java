@@ -0,0 +1,532 @@
+package uk.co.flax.luwak;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.presearcher.PresearcherMatch;
+import uk.co.flax.luwak.presearcher.PresearcherMatches;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A ShardedMonitor partitions its queries across a number of internal {@link Monitor}s,
+ * each with its own queryindex and query cache.
+ *
+ * Queries are assigned to a shard by hashing their ids.  Documents are matched against
+ * all shards in parallel, and the results from each shard are combined into a single
+ * {@link Matches} object.
+ *
+ * Use this when a very large number of queries are stored, and presearcher and
+ * match times for a single Monitor are too high.
+ */
+public class ShardedMonitor implements Closeable {
+
+    private final Monitor[] shards;
+
+    private final ExecutorService executor;
+
+    /**
+     * Create a new ShardedMonitor, with one shard for each passed in Directory
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @param directories the directories to store each shard's queryindex in
+     * @param decomposer the QueryDecomposer to use
+     * @throws IOException on IO errors
+     */
+    public ShardedMonitor(MonitorQueryParser queryParser, Presearcher presearcher,
+                          List<Directory> directories, QueryDecomposer decomposer) throws IOException {
+        if (directories.size() == 0)
+            throw new IllegalArgumentException("A ShardedMonitor must have at least one shard");
+        this.shards = new Monitor[directories.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Monitor(queryParser, presearcher, directories.get(i), decomposer);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(shards);
+            throw e;
+        }
+        this.executor = Executors.newFixedThreadPool(shards.length);
+    }
+
+    /**
+     * Create a new ShardedMonitor, with one shard for each passed in Directory, using the
+     * default QueryDecomposer
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @param directories the directories to store each shard's queryindex in
+     * @throws IOException on IO errors
+     */
+    public ShardedMonitor(MonitorQueryParser queryParser, Presearcher presearcher,
+                          List<Directory> directories) throws IOException {
+        this(queryParser, presearcher, directories, new QueryDecomposer());
+    }
+
+    /**
+     * Create a new ShardedMonitor, storing each shard's queryindex in a RAMDirectory
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @param shards the number of shards
+     * @throws IOException on IO errors
+     */
+    public ShardedMonitor(MonitorQueryParser queryParser, Presearcher presearcher, int shards) throws IOException {
+        this(queryParser, presearcher, ramDirectories(shards));
+    }
+
+    /**
+     * Create a new ShardedMonitor with as many shards as there are cores available to
+     * the JVM, storing each shard's queryindex in a RAMDirectory
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @throws IOException on IO errors
+     */
+    public ShardedMonitor(MonitorQueryParser queryParser, Presearcher presearcher) throws IOException {
+        this(queryParser, presearcher, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static List<Directory> ramDirectories(int count) {
+        List<Directory> directories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            directories.add(new RAMDirectory());
+        }
+        return directories;
+    }
+
+    /**
+     * @return the number of shards in this monitor
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private int shardFor(String queryId) {
+        return (queryId.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Add new queries to the monitor
+     * @param queries the MonitorQueries to add
+     * @return a list of exceptions for queries that could not be added
+     * @throws IOException on IO errors
+     */
+    public List<QueryError> update(Iterable<MonitorQuery> queries) throws IOException {
+        return update(queries, Monitor.NULL_REPORTER);
+    }
+
+    /**
+     * Add new queries to the monitor
+     *
+     * Each shard reports its progress to the passed-in reporter as it commits batches, with
+     * totals counted across all shards.  {@link Monitor.UpdateReporter#finish(int, int)} is
+     * called once, after every shard has finished.
+     *
+     * @param queries the MonitorQueries to add
+     * @param reporter an UpdateReporter to keep track of progress
+     * @return a list of exceptions for queries that could not be added
+     * @throws IOException on IO errors
+     */
+    public List<QueryError> update(Iterable<MonitorQuery> queries, Monitor.UpdateReporter reporter)
+            throws IOException {
+        final List<List<MonitorQuery>> partitions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new ArrayList<MonitorQuery>());
+        }
+        for (MonitorQuery query : queries) {
+            partitions.get(shardFor(query.getId())).add(query);
+        }
+
+        final ShardedUpdateReporter shardedReporter = new ShardedUpdateReporter(reporter, shards.length);
+        List<Callable<List<QueryError>>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            final Monitor shard = shards[i];
+            final List<MonitorQuery> partition = partitions.get(i);
+            final Monitor.UpdateReporter shardReporter = shardedReporter.forShard(i);
+            tasks.add(new Callable<List<QueryError>>() {
+                @Override
+                public List<QueryError> call() throws Exception {
+                    return shard.update(partition, shardReporter);
+                }
+            });
+        }
+
+        List<QueryError> errors = new ArrayList<>();
+        for (List<QueryError> shardErrors : invokeAll(tasks)) {
+            errors.addAll(shardErrors);
+        }
+        shardedReporter.finish();
+        return errors;
+    }
+
+    /**
+     * Add new queries to the monitor
+     * @param queries the MonitorQueries to add
+     * @return a list of exceptions for queries that could not be added
+     * @throws IOException on IO errors
+     */
+    public List<QueryError> update(MonitorQuery... queries) throws IOException {
+        return update(Arrays.asList(queries));
+    }
+
+    /**
+     * Delete queries from the monitor by ID
+     * @param queryIds the IDs to delete
+     * @throws IOException on IO errors
+     */
+    public void deleteById(Iterable<String> queryIds) throws IOException {
+        List<List<String>> partitions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new ArrayList<String>());
+        }
+        for (String queryId : queryIds) {
+            partitions.get(shardFor(queryId)).add(queryId);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (partitions.get(i).size() > 0)
+                shards[i].deleteById(partitions.get(i));
+        }
+    }
+
+    /**
+     * Delete queries from the monitor by ID
+     * @param queryIds the IDs to delete
+     * @throws IOException on IO errors
+     */
+    public void deleteById(String... queryIds) throws IOException {
+        deleteById(Arrays.asList(queryIds));
+    }
+
+    /**
+     * Delete queries from the monitor
+     * @param queries the queries to remove
+     * @throws IOException on IO errors
+     */
+    public void delete(Iterable<MonitorQuery> queries) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (MonitorQuery mq : queries) {
+            ids.add(mq.getId());
+        }
+        deleteById(ids);
+    }
+
+    /**
+     * Delete all queries from the monitor
+     * @throws IOException on IO errors
+     */
+    public void clear() throws IOException {
+        for (Monitor shard : shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * Register a listener to be told when queries in any shard are replaced or deleted
+     * @param listener the listener
+     */
+    public void addQueryListener(Monitor.QueryListener listener) {
+        for (Monitor shard : shards) {
+            shard.addQueryListener(listener);
+        }
+    }
+
+    /**
+     * Get the MonitorQuery for a given query id
+     * @param queryId the id of the query to get
+     * @return the MonitorQuery stored for this id, or null if not found
+     * @throws IOException on IO errors
+     */
+    public MonitorQuery getQuery(String queryId) throws IOException {
+        return shards[shardFor(queryId)].getQuery(queryId);
+    }
+
+    /**
+     * @return the number of queries stored in this monitor
+     * @throws IOException on IO errors
+     */
+    public int getQueryCount() throws IOException {
+        int count = 0;
+        for (Monitor shard : shards) {
+            count += shard.getQueryCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of queries (after decomposition) stored in this monitor
+     */
+    public int getDisjunctCount() {
+        int count = 0;
+        for (Monitor shard : shards) {
+            count += shard.getDisjunctCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get statistics for the query indexes and caches of all shards
+     *
+     * Counts and memory usage are summed over the shards.  The last purge time is that of
+     * the shard purged least recently.
+     *
+     * @return the combined CacheStats
+     */
+    public Monitor.CacheStats getStats() {
+        int queries = 0, cachedQueries = 0, pendingEvictions = 0, lastPurgeEvictions = 0;
+        long lastPurged = Long.MAX_VALUE, cacheRamBytesUsed = 0, rewriteHits = 0, rewriteMisses = 0;
+        long automatonRamBytesUsed = 0;
+        for (Monitor shard : shards) {
+            Monitor.CacheStats stats = shard.getStats();
+            queries += stats.queries;
+            cachedQueries += stats.cachedQueries;
+            lastPurged = Math.min(lastPurged, stats.lastPurged);
+            cacheRamBytesUsed += stats.cacheRamBytesUsed;
+            pendingEvictions += stats.pendingEvictions;
+            lastPurgeEvictions += stats.lastPurgeEvictions;
+            rewriteHits += stats.rewriteHits;
+            rewriteMisses += stats.rewriteMisses;
+            automatonRamBytesUsed += stats.automatonRamBytesUsed;
+        }
+        return new Monitor.CacheStats(queries, cachedQueries, lastPurged, cacheRamBytesUsed, pendingEvictions,
+                lastPurgeEvictions, rewriteHits, rewriteMisses, automatonRamBytesUsed);
+    }
+
+    /**
+     * Remove unused queries from the query caches of all shards
+     * @throws IOException on IO errors
+     * @see Monitor#purgeCache()
+     */
+    public void purgeCache() throws IOException {
+        for (Monitor shard : shards) {
+            shard.purgeCache();
+        }
+    }
+
+    /**
+     * Set the slow log limit on all shards
+     * @param limit the limit in nanoseconds
+     * @see Monitor#setSlowLogLimit(long)
+     */
+    public void setSlowLogLimit(long limit) {
+        for (Monitor shard : shards) {
+            shard.setSlowLogLimit(limit);
+        }
+    }
+
+    /**
+     * Match an {@link InputDocument} against all shards in parallel
+     * @param doc the InputDocument to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for each shard
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return the combined {@link Matches} from all shards
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> Matches<T> match(final InputDocument doc, final MatcherFactory<T> factory)
+            throws IOException {
+        List<Callable<Matches<T>>> tasks = new ArrayList<>();
+        for (final Monitor shard : shards) {
+            tasks.add(new Callable<Matches<T>>() {
+                @Override
+                public Matches<T> call() throws Exception {
+                    return shard.match(doc, factory);
+                }
+            });
+        }
+        List<Matches<T>> shardMatches = invokeAll(tasks);
+        // create the merging matcher only once the shards have finished, as matchers may
+        // hold resources, such as executor threads, that the shards' matchers also need
+        return combine(factory.createMatcher(doc), shardMatches);
+    }
+
+    /**
+     * Match an {@link InputDocument} against all shards, returning details of which
+     * presearcher terms selected each query
+     * @param doc the InputDocument to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for each shard
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return the combined {@link PresearcherMatches} from all shards
+     * @throws IOException on IO errors
+     * @see Monitor#debug(InputDocument, MatcherFactory)
+     */
+    public <T extends QueryMatch> PresearcherMatches<T> debug(final InputDocument doc, final MatcherFactory<T> factory)
+            throws IOException {
+        List<Callable<PresearcherMatches<T>>> tasks = new ArrayList<>();
+        for (final Monitor shard : shards) {
+            tasks.add(new Callable<PresearcherMatches<T>>() {
+                @Override
+                public PresearcherMatches<T> call() throws Exception {
+                    return shard.debug(doc, factory);
+                }
+            });
+        }
+        List<PresearcherMatches<T>> shardResults = invokeAll(tasks);
+
+        // each query is stored on a single shard, so the shards' query ids don't overlap
+        Map<String, StringBuilder> matchingTerms = new HashMap<>();
+        List<Matches<T>> shardMatches = new ArrayList<>();
+        for (PresearcherMatches<T> shardResult : shardResults) {
+            for (PresearcherMatch<T> match : shardResult) {
+                matchingTerms.put(match.queryId, new StringBuilder(match.presearcherMatches));
+            }
+            shardMatches.add(shardResult.matcher);
+        }
+        return new PresearcherMatches<>(matchingTerms, combine(factory.createMatcher(doc), shardMatches));
+    }
+
+    /**
+     * Match all the documents in an {@link InputBatch} against all shards in parallel
+     * @param batch the InputBatch to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for
+     *                the batch on each shard
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a Map of document id to the combined {@link Matches} from all shards
+     * @throws IOException on IO errors
+     * @see Monitor#match(InputBatch, MatcherFactory)
+     */
+    public <T extends QueryMatch> Map<String, Matches<T>> match(final InputBatch batch,
+                                                                final MatcherFactory<T> factory) throws IOException {
+        List<Callable<Map<String, Matches<T>>>> tasks = new ArrayList<>();
+        for (final Monitor shard : shards) {
+            tasks.add(new Callable<Map<String, Matches<T>>>() {
+                @Override
+                public Map<String, Matches<T>> call() throws Exception {
+                    return shard.match(batch, factory);
+                }
+            });
+        }
+        List<Map<String, Matches<T>>> shardResults = invokeAll(tasks);
+
+        Map<String, Matches<T>> results = new LinkedHashMap<>();
+        for (String docId : batch.getDocumentIds()) {
+            List<Matches<T>> docMatches = new ArrayList<>();
+            for (Map<String, Matches<T>> shardResult : shardResults) {
+                docMatches.add(shardResult.get(docId));
+            }
+            results.put(docId, relabel(docId, combine(factory.createMatcher(batch), docMatches)));
+        }
+        return results;
+    }
+
+    // Matches combined by a matcher over a batch carry the batch's id, so give them the document's id instead
+    private static <T extends QueryMatch> Matches<T> relabel(String docId, Matches<T> matches) {
+        Map<String, T> byQuery = new HashMap<>();
+        for (T match : matches) {
+            byQuery.put(match.getQueryId(), match);
+        }
+        return new Matches<>(docId, byQuery, matches.getErrors(), matches.getQueryBuildTime(),
+                             matches.getSearchTime(), matches.getQueriesRun(), matches.getSlowLog());
+    }
+
+    // Merge the results from each shard into a single Matches object, using the collector's resolve()
+    private static <T extends QueryMatch> Matches<T> combine(CandidateMatcher<T> collector,
+                                                             List<Matches<T>> shardMatches) {
+        long buildTime = 0;
+        int queriesRun = 0;
+        for (Matches<T> matches : shardMatches) {
+            for (T match : matches) {
+                collector.addMatch(match.getQueryId(), match);
+            }
+            for (MatchError error : matches.getErrors()) {
+                collector.reportError(error);
+            }
+            collector.slowlog.addAll(matches.getSlowLog());
+            // shards build their presearcher queries in parallel
+            buildTime = Math.max(buildTime, matches.getQueryBuildTime());
+            queriesRun += matches.getQueriesRun();
+        }
+        collector.finish(buildTime, queriesRun);
+        return collector.getMatches();
+    }
+
+    // Combines the progress reports of each shard's update into a single set of totals
+    private static class ShardedUpdateReporter {
+
+        private final Monitor.UpdateReporter reporter;
+        private final int[] totals;
+        private final int[] finalBatchSizes;
+
+        ShardedUpdateReporter(Monitor.UpdateReporter reporter, int shards) {
+            this.reporter = reporter;
+            this.totals = new int[shards];
+            this.finalBatchSizes = new int[shards];
+        }
+
+        Monitor.UpdateReporter forShard(final int shard) {
+            return new Monitor.UpdateReporter() {
+                @Override
+                public void progress(int total, int batchsize) {
+                    synchronized (ShardedUpdateReporter.this) {
+                        totals[shard] = total;
+                        reporter.progress(sum(totals), batchsize);
+                    }
+                }
+
+                @Override
+                public void finish(int total, int finalbatchsize) {
+                    synchronized (ShardedUpdateReporter.this) {
+                        totals[shard] = total;
+                        finalBatchSizes[shard] = finalbatchsize;
+                    }
+                }
+            };
+        }
+
+        synchronized void finish() {
+            reporter.finish(sum(totals), sum(finalBatchSizes));
+        }
+
+        private static int sum(int[] values) {
+            int sum = 0;
+            for (int value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+    }
+
+    private <V> List<V> invokeAll(List<Callable<V>> tasks) throws IOException {
+        List<V> results = new ArrayList<>();
+        try {
+            for (Future<V> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during sharded operation", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        IOUtils.close(shards);
+    }
+
+}
@@ -0,0 +1,163 @@
+package uk.co.flax.luwak;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A QuerySerializer that handles TermQuery, PhraseQuery, BooleanQuery,
+ * ConstantScoreQuery and MatchAllDocsQuery, including any boosts.
+ *
+ * Any other query type, including subclasses of these types and any query that
+ * contains one, will not be serialized, and so will be re-parsed when a Monitor
+ * is restarted.
+ */
+public class SimpleQuerySerializer implements QuerySerializer {
+
+    private static final byte TERM = 1;
+    private static final byte PHRASE = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte CONSTANT_SCORE = 4;
+    private static final byte MATCH_ALL = 5;
+
+    @Override
+    public BytesRef serialize(Query query) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (OutputStreamDataOutput data = new OutputStreamDataOutput(os)) {
+            if (!write(query, data))
+                return null;
+            return new BytesRef(os.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e); // shouldn't happen, we're writing to a bytearray!
+        }
+    }
+
+    @Override
+    public Query deserialize(BytesRef bytes) throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(bytes.bytes, bytes.offset, bytes.length);
+        try (InputStreamDataInput data = new InputStreamDataInput(is)) {
+            return read(data);
+        }
+    }
+
+    private static boolean write(Query query, DataOutput data) throws IOException {
+        if (query.getClass() == TermQuery.class) {
+            data.writeByte(TERM);
+            writeTerm(((TermQuery) query).getTerm(), data);
+        }
+        else if (query.getClass() == PhraseQuery.class) {
+            PhraseQuery pq = (PhraseQuery) query;
+            data.writeByte(PHRASE);
+            data.writeVInt(pq.getSlop());
+            Term[] terms = pq.getTerms();
+            int[] positions = pq.getPositions();
+            data.writeVInt(terms.length);
+            for (int i = 0; i < terms.length; i++) {
+                writeTerm(terms[i], data);
+                data.writeVInt(positions[i]);
+            }
+        }
+        else if (query.getClass() == BooleanQuery.class) {
+            BooleanQuery bq = (BooleanQuery) query;
+            data.writeByte(BOOLEAN);
+            data.writeByte((byte) (bq.isCoordDisabled() ? 1 : 0));
+            data.writeVInt(bq.getMinimumNumberShouldMatch());
+            data.writeVInt(bq.clauses().size());
+            for (BooleanClause clause : bq.clauses()) {
+                data.writeByte((byte) clause.getOccur().ordinal());
+                if (!write(clause.getQuery(), data))
+                    return false;
+            }
+        }
+        else if (query.getClass() == ConstantScoreQuery.class && ((ConstantScoreQuery) query).getQuery() != null) {
+            data.writeByte(CONSTANT_SCORE);
+            if (!write(((ConstantScoreQuery) query).getQuery(), data))
+                return false;
+        }
+        else if (query.getClass() == MatchAllDocsQuery.class) {
+            data.writeByte(MATCH_ALL);
+        }
+        else {
+            return false;
+        }
+        data.writeInt(Float.floatToIntBits(query.getBoost()));
+        return true;
+    }
+
+    private static Query read(DataInput data) throws IOException {
+        Query query;
+        byte type = data.readByte();
+        switch (type) {
+            case TERM:
+                query = new TermQuery(readTerm(data));
+                break;
+            case PHRASE:
+                PhraseQuery pq = new PhraseQuery();
+                pq.setSlop(data.readVInt());
+                for (int i = data.readVInt(); i > 0; i--) {
+                    Term term = readTerm(data);
+                    pq.add(term, data.readVInt());
+                }
+                query = pq;
+                break;
+            case BOOLEAN:
+                BooleanQuery bq = new BooleanQuery(data.readByte() == 1);
+                bq.setMinimumNumberShouldMatch(data.readVInt());
+                for (int i = data.readVInt(); i > 0; i--) {
+                    BooleanClause.Occur occur = BooleanClause.Occur.values()[data.readByte()];
+                    bq.add(read(data), occur);
+                }
+                query = bq;
+                break;
+            case CONSTANT_SCORE:
+                query = new ConstantScoreQuery(read(data));
+                break;
+            case MATCH_ALL:
+                query = new MatchAllDocsQuery();
+                break;
+            default:
+                throw new IOException("Unknown serialized query type: " + type);
+        }
+        query.setBoost(Float.intBitsToFloat(data.readInt()));
+        return query;
+    }
+
+    private static void writeTerm(Term term, DataOutput data) throws IOException {
+        data.writeString(term.field());
+        BytesRef bytes = term.bytes();
+        data.writeVInt(bytes.length);
+        data.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static Term readTerm(DataInput data) throws IOException {
+        String field = data.readString();
+        byte[] bytes = new byte[data.readVInt()];
+        data.readBytes(bytes, 0, bytes.length);
+        return new Term(field, new BytesRef(bytes));
+    }
+
+}
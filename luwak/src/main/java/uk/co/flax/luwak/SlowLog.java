@@ -0,0 +1,195 @@
+package uk.co.flax.luwak;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A record of the queries that took longer than the slow log limit to run
+ * during a match run.
+ *
+ * The log holds at most a fixed number of entries.  Once it is full, a new entry
+ * replaces the fastest entry in the log if it is slower, so the log always holds
+ * the slowest queries seen.
+ *
+ * Entries are stored in parallel arrays that are only allocated once the first
+ * slow query is added.  Instances are not thread-safe.
+ *
+ * @see Matches#getSlowLog()
+ */
+public class SlowLog implements Iterable<SlowLog.Entry> {
+
+    /**
+     * The default maximum number of entries held in a SlowLog
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int maxEntries;
+
+    private String[] queryIds;
+    private long[] times;
+    private int size = 0;
+
+    /**
+     * Create a new SlowLog
+     * @param maxEntries the maximum number of entries to hold
+     */
+    public SlowLog(int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("A SlowLog must be able to hold at least one entry");
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Create a new SlowLog holding up to {@link #DEFAULT_MAX_ENTRIES} entries
+     */
+    public SlowLog() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a copy of an existing SlowLog
+     * @param other the SlowLog to copy
+     */
+    public SlowLog(SlowLog other) {
+        this.maxEntries = other.maxEntries;
+        this.size = other.size;
+        if (other.size > 0) {
+            this.queryIds = Arrays.copyOf(other.queryIds, other.size);
+            this.times = Arrays.copyOf(other.times, other.size);
+        }
+    }
+
+    /**
+     * An individual slow query
+     */
+    public static class Entry {
+
+        /** The query id */
+        public final String queryId;
+
+        /** The time taken to run the query, in nanoseconds */
+        public final long time;
+
+        Entry(String queryId, long time) {
+            this.queryId = queryId;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return queryId + ":" + (time / 1000000);
+        }
+    }
+
+    /**
+     * Record a slow query
+     * @param queryId the query id
+     * @param time the time taken to run the query, in nanoseconds
+     */
+    public void addQuery(String queryId, long time) {
+        if (size < maxEntries) {
+            if (queryIds == null || size == queryIds.length) {
+                int capacity = queryIds == null ? INITIAL_CAPACITY : queryIds.length * 2;
+                capacity = Math.min(capacity, maxEntries);
+                queryIds = queryIds == null ? new String[capacity] : Arrays.copyOf(queryIds, capacity);
+                times = times == null ? new long[capacity] : Arrays.copyOf(times, capacity);
+            }
+            queryIds[size] = queryId;
+            times[size] = time;
+            size++;
+            return;
+        }
+        int fastest = 0;
+        for (int i = 1; i < size; i++) {
+            if (times[i] < times[fastest])
+                fastest = i;
+        }
+        if (time > times[fastest]) {
+            queryIds[fastest] = queryId;
+            times[fastest] = time;
+        }
+    }
+
+    /**
+     * Add all entries from another SlowLog to this one
+     * @param other the SlowLog to add
+     */
+    public void addAll(SlowLog other) {
+        for (int i = 0; i < other.size; i++) {
+            addQuery(other.queryIds[i], other.times[i]);
+        }
+    }
+
+    /**
+     * @return the number of entries in the log
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no slow queries have been recorded
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Entry next() {
+                if (i >= size)
+                    throw new NoSuchElementException();
+                Entry entry = new Entry(queryIds[i], times[i]);
+                i++;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the log as a String of space-separated queryId:milliseconds pairs
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(queryIds[i]).append(":").append(times[i] / 1000000).append(" ");
+        }
+        return sb.toString();
+    }
+
+}
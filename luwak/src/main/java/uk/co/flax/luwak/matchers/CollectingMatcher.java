@@ -5,6 +5,7 @@ import java.io.IOException;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
 import uk.co.flax.luwak.CandidateMatcher;
+import uk.co.flax.luwak.InputBatch;
 import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.QueryMatch;
 
@@ -49,13 +50,19 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
         doc.getSearcher().search(matchQuery, coll);
         t = System.nanoTime() - t;
         if (t > slowLogLimit)
-            slowlog.append(queryId + ":" + (t / 1000000) + " ");
+            slowlog.addQuery(queryId, t);
 
-        if (coll.match != null)
+        // matches against a batch are recorded per document by the collector
+        if (coll.match != null && !(doc instanceof InputBatch))
             addMatch(queryId, coll.match);
         return coll.match;
     }
 
+    @Override
+    protected boolean supportsBatches() {
+        return true;
+    }
+
     /**
      * Called when a query matches the InputDocument
      * @param queryId the query ID
@@ -79,7 +86,7 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
 
         @Override
         public LeafCollector getLeafCollector(LeafReaderContext leafReaderContext) throws IOException {
-            return new MatchLeafCollector();
+            return new MatchLeafCollector(leafReaderContext.docBase);
         }
 
         @Override
@@ -94,6 +101,12 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
 
         public class MatchLeafCollector implements LeafCollector {
 
+            private final int docBase;
+
+            public MatchLeafCollector(int docBase) {
+                this.docBase = docBase;
+            }
+
             @Override
             public void setScorer(Scorer scorer) throws IOException {
                 MatchCollector.this.scorer = scorer;
@@ -102,6 +115,8 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
             @Override
             public void collect(int doc) throws IOException {
                 match = doMatch(queryId, scorer);
+                if (CollectingMatcher.this.doc instanceof InputBatch)
+                    addMatch(docBase + doc, queryId, match);
             }
 
         }
@@ -0,0 +1,196 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.*;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A multi-threaded matcher that collects all possible matches in one pass, and
+ * then matches them using recursive tasks on a {@link ForkJoinPool}.
+ *
+ * The candidate queries are split in half repeatedly until each task holds no
+ * more than a fixed number of queries.  Idle worker threads steal pending tasks
+ * from busy ones, so a few slow queries do not leave the rest of the pool idle in
+ * the way that a static partition can.
+ *
+ * Collection does not block or allocate a task object per candidate query, so
+ * the presearcher is not held up by the matching threads.
+ *
+ * This class delegates the matching to separate CandidateMatcher classes,
+ * built from a passed in MatcherFactory.
+ *
+ * @see uk.co.flax.luwak.matchers.ParallelMatcher
+ * @see uk.co.flax.luwak.matchers.PartitionMatcher
+ *
+ * @param <T> the type of QueryMatch to return
+ */
+public class ForkJoinMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /**
+     * The default maximum number of queries matched by a single task
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 32;
+
+    private final ForkJoinPool pool;
+
+    private final MatcherFactory<T> matcherFactory;
+
+    private final int chunkSize;
+
+    private final CandidateMatcher<T> resolvingMatcher;
+
+    private final List<String> queryIds = new ArrayList<>();
+    private final List<Query> matchQueries = new ArrayList<>();
+    private final List<Query> highlightQueries = new ArrayList<>();
+
+    private final Queue<Matches<T>> results = new ConcurrentLinkedQueue<>();
+
+    public ForkJoinMatcher(InputDocument doc, ForkJoinPool pool, MatcherFactory<T> matcherFactory, int chunkSize) {
+        super(doc);
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        this.pool = pool;
+        this.matcherFactory = matcherFactory;
+        this.chunkSize = chunkSize;
+        this.resolvingMatcher = matcherFactory.createMatcher(doc);
+    }
+
+    @Override
+    public T matchQuery(String queryId, Query matchQuery, Query highlightQuery) throws IOException {
+        queryIds.add(queryId);
+        matchQueries.add(matchQuery);
+        highlightQueries.add(highlightQuery);
+        return null;
+    }
+
+    @Override
+    protected boolean defersMatching() {
+        return true;
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return resolvingMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+
+        if (queryIds.size() > 0)
+            pool.invoke(new MatchAction(0, queryIds.size()));
+
+        for (Matches<T> matches : results) {
+            for (T match : matches) {
+                addMatch(match.getQueryId(), match);
+            }
+            for (MatchError error : matches.getErrors()) {
+                reportError(error);
+            }
+            this.slowlog.addAll(matches.getSlowLog());
+        }
+
+        super.finish(buildTime, queryCount);
+    }
+
+    private class MatchAction extends RecursiveAction {
+
+        final int start;
+        final int end;
+
+        private MatchAction(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                results.add(matchRange());
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new MatchAction(start, mid), new MatchAction(mid, end));
+        }
+
+        private Matches<T> matchRange() {
+            CandidateMatcher<T> matcher = matcherFactory.createMatcher(doc);
+            matcher.setSlowLogLimit(slowLogLimit);
+            for (int i = start; i < end; i++) {
+                try {
+                    long t = System.nanoTime();
+                    T match = matcher.matchQuery(queryIds.get(i), matchQueries.get(i), highlightQueries.get(i));
+                    reportQueryRun(queryIds.get(i), System.nanoTime() - t, match != null);
+                } catch (IOException e) {
+                    matcher.reportError(new MatchError(queryIds.get(i), e));
+                }
+            }
+            return matcher.getMatches();
+        }
+    }
+
+    public static class ForkJoinMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+        private final ForkJoinPool pool;
+        private final MatcherFactory<T> matcherFactory;
+        private final int chunkSize;
+
+        public ForkJoinMatcherFactory(ForkJoinPool pool, MatcherFactory<T> matcherFactory, int chunkSize) {
+            this.pool = pool;
+            this.matcherFactory = matcherFactory;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ForkJoinMatcher<T> createMatcher(InputDocument doc) {
+            return new ForkJoinMatcher<>(doc, pool, matcherFactory, chunkSize);
+        }
+    }
+
+    /**
+     * Create a new ForkJoinMatcherFactory
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param chunkSize the maximum number of queries to match in a single task
+     * @param <T> the type of QueryMatch generated
+     * @return a ForkJoinMatcherFactory
+     */
+    public static <T extends QueryMatch> ForkJoinMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                          MatcherFactory<T> matcherFactory, int chunkSize) {
+        return new ForkJoinMatcherFactory<>(pool, matcherFactory, chunkSize);
+    }
+
+    /**
+     * Create a new ForkJoinMatcherFactory, using the default chunk size
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a ForkJoinMatcherFactory
+     */
+    public static <T extends QueryMatch> ForkJoinMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                          MatcherFactory<T> matcherFactory) {
+        return new ForkJoinMatcherFactory<>(pool, matcherFactory, DEFAULT_CHUNK_SIZE);
+    }
+}
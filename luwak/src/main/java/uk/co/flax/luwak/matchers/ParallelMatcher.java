@@ -77,6 +77,11 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
         return null;
     }
 
+    @Override
+    protected boolean defersMatching() {
+        return true;
+    }
+
     @Override
     public T resolve(T match1, T match2) {
         return collectorMatcher.resolve(match1, match2);
@@ -105,7 +110,7 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
                 for (MatchError error : matches.getErrors()) {
                     this.reportError(error);
                 }
-                this.slowlog.append(matches.getSlowLog());
+                this.slowlog.addAll(matches.getSlowLog());
             }
 
         } catch (InterruptedException | ExecutionException e) {
@@ -129,7 +134,9 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
             try {
                 while ((task = queue.take()) != END) {
                     try {
-                        matcher.matchQuery(task.id, task.matchQuery, task.highlightQuery);
+                        long t = System.nanoTime();
+                        T match = matcher.matchQuery(task.id, task.matchQuery, task.highlightQuery);
+                        reportQueryRun(task.id, System.nanoTime() - t, match != null);
                     } catch (IOException e) {
                         matcher.reportError(new MatchError(task.id, e));
                     }
@@ -40,6 +40,11 @@ import uk.co.flax.luwak.util.CollectionUtils;
  * the synchronization overhead of {@link uk.co.flax.luwak.matchers.ParallelMatcher}
  * can outweigh the benefit of multithreading.
  *
+ * If a {@link QueryCostModel} is supplied, the time taken by each query is recorded,
+ * and queries are partitioned so that each thread has approximately the same
+ * total expected match time, rather than the same number of queries.  This stops
+ * a few expensive queries from making a single partition straggle.
+ *
  * @see uk.co.flax.luwak.matchers.ParallelMatcher
  *
  * @param <T> the type of QueryMatch to return
@@ -54,6 +59,8 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
     private final CandidateMatcher<T> resolvingMatcher;
 
+    private final QueryCostModel costModel;
+
     private static class MatchTask {
 
         final String queryId;
@@ -69,12 +76,18 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
     private final List<MatchTask> tasks = new ArrayList<>();
 
-    public PartitionMatcher(InputDocument doc, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads) {
+    public PartitionMatcher(InputDocument doc, ExecutorService executor, MatcherFactory<T> matcherFactory,
+                            int threads, QueryCostModel costModel) {
         super(doc);
         this.executor = executor;
         this.matcherFactory = matcherFactory;
         this.threads = threads;
         this.resolvingMatcher = matcherFactory.createMatcher(doc);
+        this.costModel = costModel;
+    }
+
+    public PartitionMatcher(InputDocument doc, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads) {
+        this(doc, executor, matcherFactory, threads, null);
     }
 
     @Override
@@ -83,6 +96,11 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         return null;
     }
 
+    @Override
+    protected boolean defersMatching() {
+        return true;
+    }
+
     @Override
     public T resolve(T match1, T match2) {
         return resolvingMatcher.resolve(match1, match2);
@@ -92,7 +110,10 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
     public void finish(long buildTime, int queryCount) {
 
         List<Callable<Matches<T>>> workers = new ArrayList<>(threads);
-        for (List<MatchTask> taskset : CollectionUtils.partition(tasks, threads)) {
+        List<List<MatchTask>> partitions = costModel == null
+                ? CollectionUtils.partition(tasks, threads)
+                : CollectionUtils.partition(tasks, estimateCosts(), threads);
+        for (List<MatchTask> taskset : partitions) {
             CandidateMatcher<T> matcher = matcherFactory.createMatcher(doc);
             matcher.setSlowLogLimit(this.slowLogLimit);
             workers.add(new MatcherWorker(taskset, matcher));
@@ -104,7 +125,7 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
                 for (T match : matches) {
                     addMatch(match.getQueryId(), match);
                 }
-                this.slowlog.append(matches.getSlowLog());
+                this.slowlog.addAll(matches.getSlowLog());
             }
 
         } catch (InterruptedException | ExecutionException e) {
@@ -114,6 +135,26 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         super.finish(buildTime, queryCount);
     }
 
+    // Queries that have not been run before are assumed to cost the average of those that have
+    private double[] estimateCosts() {
+        double[] costs = new double[tasks.size()];
+        double total = 0;
+        int known = 0;
+        for (int i = 0; i < costs.length; i++) {
+            costs[i] = costModel.getCost(tasks.get(i).queryId, tasks.get(i).matchQuery, -1);
+            if (costs[i] >= 0) {
+                total += costs[i];
+                known++;
+            }
+        }
+        double defaultCost = known == 0 ? 1 : total / known;
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] < 0)
+                costs[i] = defaultCost;
+        }
+        return costs;
+    }
+
     private class MatcherWorker implements Callable<Matches<T>> {
 
         final List<MatchTask> tasks;
@@ -128,7 +169,12 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         public Matches<T> call() {
             for (MatchTask task : tasks) {
                 try {
-                    matcher.matchQuery(task.queryId, task.matchQuery, task.highlightQuery);
+                    long t = System.nanoTime();
+                    T match = matcher.matchQuery(task.queryId, task.matchQuery, task.highlightQuery);
+                    long elapsed = System.nanoTime() - t;
+                    if (costModel != null)
+                        costModel.record(task.queryId, task.matchQuery, elapsed);
+                    reportQueryRun(task.queryId, elapsed, match != null);
                 } catch (IOException e) {
                     PartitionMatcher.this.reportError(new MatchError(task.queryId, e));
                 }
@@ -142,17 +188,24 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         private final ExecutorService executor;
         private final MatcherFactory<T> matcherFactory;
         private final int threads;
+        private final QueryCostModel costModel;
 
         public PartitionMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
-                                      int threads) {
+                                      int threads, QueryCostModel costModel) {
             this.executor = executor;
             this.matcherFactory = matcherFactory;
             this.threads = threads;
+            this.costModel = costModel;
+        }
+
+        public PartitionMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
+                                      int threads) {
+            this(executor, matcherFactory, threads, null);
         }
 
         @Override
         public PartitionMatcher<T> createMatcher(InputDocument doc) {
-            return new PartitionMatcher<>(doc, executor, matcherFactory, threads);
+            return new PartitionMatcher<>(doc, executor, matcherFactory, threads, costModel);
         }
     }
 
@@ -169,6 +222,21 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         return new PartitionMatcherFactory<>(executor, matcherFactory, threads);
     }
 
+    /**
+     * Create a new PartitionMatcherFactory that balances partitions by expected query cost
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param threads the number of threads to use
+     * @param costModel a QueryCostModel to record and estimate query match times
+     * @param <T> the type of QueryMatch generated
+     * @return a PartitionMatcherFactory
+     */
+    public static <T extends QueryMatch> PartitionMatcherFactory<T> factory(ExecutorService executor,
+                                                                           MatcherFactory<T> matcherFactory, int threads,
+                                                                           QueryCostModel costModel) {
+        return new PartitionMatcherFactory<>(executor, matcherFactory, threads, costModel);
+    }
+
     /**
      * Create a new PartitionMatcherFactory
      *
@@ -0,0 +1,240 @@
+package uk.co.flax.luwak.matchers;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.Monitor;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Records how long each query takes to run, as an exponentially decaying
+ * average of its recent match times.
+ *
+ * Costs are recorded separately for each disjunct of a decomposed query.  Disjuncts are
+ * identified by the query id and the identity of the match query object passed to the
+ * matcher, which the Monitor keeps for as long as the disjunct is held in its query cache,
+ * so looking up a cost does not need to hash the query.  The model holds a bounded number
+ * of costs; once it is full, recording the cost of a new query forgets the costs of an
+ * arbitrary existing one.
+ *
+ * Register the model with {@link Monitor#addQueryListener(Monitor.QueryListener)} so that
+ * the costs of queries are forgotten when they are replaced or deleted.
+ *
+ * A single QueryCostModel should be shared between all matchers created by a
+ * factory, so that costs are learned across documents.  It is safe for concurrent use.
+ *
+ * @see uk.co.flax.luwak.matchers.PartitionMatcher
+ */
+public class QueryCostModel implements Monitor.QueryListener {
+
+    /**
+     * The default weight given to the most recent sample
+     */
+    public static final double DEFAULT_DECAY = 0.2;
+
+    /**
+     * The default maximum number of costs held by the model
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    private final ConcurrentMap<String, DisjunctCosts> costs = new ConcurrentHashMap<>();
+
+    /* The number of disjuncts with recorded costs */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final double decay;
+
+    private final int maxSize;
+
+    /**
+     * Create a new QueryCostModel
+     * @param decay the weight given to the most recent sample, between 0 and 1.  Higher
+     *              values adapt more quickly to changes in query cost.
+     * @param maxSize the maximum number of costs to hold
+     */
+    public QueryCostModel(double decay, int maxSize) {
+        if (decay <= 0 || decay > 1)
+            throw new IllegalArgumentException("Decay must be greater than 0 and no more than 1");
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Maximum size must be greater than 0");
+        this.decay = decay;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Create a new QueryCostModel using the default maximum size
+     * @param decay the weight given to the most recent sample, between 0 and 1.  Higher
+     *              values adapt more quickly to changes in query cost.
+     */
+    public QueryCostModel(double decay) {
+        this(decay, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a new QueryCostModel using the default decay and maximum size
+     */
+    public QueryCostModel() {
+        this(DEFAULT_DECAY);
+    }
+
+    /**
+     * Record a match time for a query
+     * @param queryId the query id
+     * @param matchQuery the disjunct of the query that was run
+     * @param nanos the time taken to run the query, in nanoseconds
+     */
+    public void record(String queryId, Query matchQuery, long nanos) {
+        DisjunctCosts queryCosts = costs.get(queryId);
+        if (queryCosts == null) {
+            makeRoom();
+            DisjunctCosts newCosts = new DisjunctCosts();
+            queryCosts = costs.putIfAbsent(queryId, newCosts);
+            if (queryCosts == null)
+                queryCosts = newCosts;
+        }
+        size.addAndGet(queryCosts.record(disjunct(matchQuery), nanos, decay));
+    }
+
+    private void makeRoom() {
+        Iterator<String> queryIds = costs.keySet().iterator();
+        while (size.get() >= maxSize && queryIds.hasNext()) {
+            remove(queryIds.next());
+        }
+    }
+
+    private static int disjunct(Query matchQuery) {
+        return System.identityHashCode(matchQuery);
+    }
+
+    /**
+     * Get the estimated cost of a query
+     * @param queryId the query id
+     * @param matchQuery the disjunct of the query to be run
+     * @param defaultCost the value to return if no match times have been recorded for the query
+     * @return the estimated match time of the query, in nanoseconds
+     */
+    public double getCost(String queryId, Query matchQuery, double defaultCost) {
+        DisjunctCosts queryCosts = costs.get(queryId);
+        return queryCosts == null ? defaultCost : queryCosts.get(disjunct(matchQuery), defaultCost);
+    }
+
+    /**
+     * Get the total estimated cost of all the recorded disjuncts of a query
+     * @param queryId the query id
+     * @param defaultCost the value to return if no match times have been recorded for the query
+     * @return the estimated match time of the query, in nanoseconds
+     */
+    public double getCost(String queryId, double defaultCost) {
+        DisjunctCosts queryCosts = costs.get(queryId);
+        return queryCosts == null ? defaultCost : queryCosts.total(defaultCost);
+    }
+
+    /**
+     * Forget the recorded costs of all the disjuncts of a query
+     * @param queryId the query id
+     */
+    public void remove(String queryId) {
+        DisjunctCosts queryCosts = costs.remove(queryId);
+        if (queryCosts != null)
+            size.addAndGet(-queryCosts.close());
+    }
+
+    @Override
+    public void queryReplaced(String queryId) {
+        remove(queryId);
+    }
+
+    @Override
+    public void queryDeleted(String queryId) {
+        remove(queryId);
+    }
+
+    /**
+     * Forget all recorded costs
+     */
+    public void clear() {
+        for (String queryId : costs.keySet()) {
+            remove(queryId);
+        }
+    }
+
+    /**
+     * @return the number of query disjuncts with recorded costs
+     */
+    public int size() {
+        return size.get();
+    }
+
+    // The costs of the disjuncts of a single query.  Most queries have only one disjunct.
+    private static final class DisjunctCosts {
+
+        private int[] disjuncts = new int[1];
+        private double[] costs = new double[1];
+        private int count = 0;
+        private boolean closed = false;
+
+        // returns the number of disjuncts added
+        synchronized int record(int disjunct, long nanos, double decay) {
+            if (closed)
+                return 0;
+            for (int i = 0; i < count; i++) {
+                if (disjuncts[i] == disjunct) {
+                    costs[i] += decay * (nanos - costs[i]);
+                    return 0;
+                }
+            }
+            if (count == disjuncts.length) {
+                disjuncts = Arrays.copyOf(disjuncts, count * 2);
+                costs = Arrays.copyOf(costs, count * 2);
+            }
+            disjuncts[count] = disjunct;
+            costs[count] = nanos;
+            count++;
+            return 1;
+        }
+
+        synchronized double get(int disjunct, double defaultCost) {
+            for (int i = 0; i < count; i++) {
+                if (disjuncts[i] == disjunct)
+                    return costs[i];
+            }
+            return defaultCost;
+        }
+
+        synchronized double total(double defaultCost) {
+            if (count == 0)
+                return defaultCost;
+            double total = 0;
+            for (int i = 0; i < count; i++) {
+                total += costs[i];
+            }
+            return total;
+        }
+
+        // stop recording costs, returning the number of disjuncts forgotten
+        synchronized int close() {
+            closed = true;
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package uk.co.flax.luwak.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A fixed-size, lock-free histogram of latencies.
+ *
+ * Latencies are recorded in microseconds, into buckets whose width grows with
+ * the size of the value: by default each power of two is split into eight linear
+ * sub-buckets, so reported values are within 12.5% of the recorded values.  Coarser
+ * histograms, which use less memory, can be created with fewer sub-buckets.  Values up
+ * to 2^32 microseconds (about 71 minutes) can be recorded; larger values are recorded
+ * in the top bucket.
+ *
+ * Recording a value does not allocate, and takes no locks.
+ */
+public class LatencyHistogram {
+
+    /** The default number of bits used to split each power of two into sub-buckets */
+    public static final int DEFAULT_SUB_BUCKET_BITS = 3;
+
+    private static final int MAX_EXPONENT = 32;
+
+    static final int BUCKET_COUNT = bucketCount(DEFAULT_SUB_BUCKET_BITS);
+
+    private final int subBucketBits;
+    private final AtomicLongArray counts;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Create a new LatencyHistogram, with values reported within 12.5% of the recorded values
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Create a new LatencyHistogram with a given resolution
+     *
+     * Each power of two is split into 2^subBucketBits sub-buckets, so reported values are
+     * within 100/2^subBucketBits percent of the recorded values.  A histogram uses
+     * about 8 * (33 - subBucketBits) * 2^subBucketBits bytes of memory.
+     *
+     * @param subBucketBits the resolution, between 0 and {@link #DEFAULT_SUB_BUCKET_BITS}
+     */
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 0 || subBucketBits > DEFAULT_SUB_BUCKET_BITS)
+            throw new IllegalArgumentException("subBucketBits must be between 0 and " + DEFAULT_SUB_BUCKET_BITS);
+        this.subBucketBits = subBucketBits;
+        this.counts = new AtomicLongArray(bucketCount(subBucketBits));
+    }
+
+    static int bucketCount(int subBucketBits) {
+        return (MAX_EXPONENT - subBucketBits + 1) << subBucketBits;
+    }
+
+    static int bucket(long micros) {
+        return bucket(micros, DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    static int bucket(long micros, int subBucketBits) {
+        int subBuckets = 1 << subBucketBits;
+        if (micros < subBuckets)
+            return (int) Math.max(micros, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT)
+            return bucketCount(subBucketBits) - 1;
+        int shift = exponent - subBucketBits;
+        int subBucket = (int) ((micros >>> shift) & (subBuckets - 1));
+        return (shift + 1) * subBuckets + subBucket;
+    }
+
+    static long highestValue(int bucket) {
+        return highestValue(bucket, DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    // the largest value that is recorded in a bucket
+    static long highestValue(int bucket, int subBucketBits) {
+        int subBuckets = 1 << subBucketBits;
+        if (bucket < subBuckets)
+            return bucket;
+        int shift = bucket / subBuckets - 1;
+        long subBucket = bucket % subBuckets;
+        return ((subBuckets + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a latency
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        counts.incrementAndGet(bucket(micros, subBucketBits));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all recorded latencies, in nanoseconds
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @return the mean recorded latency, in nanoseconds
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (double) n;
+    }
+
+    /**
+     * @return the largest recorded latency, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the latency at a given percentile
+     *
+     * The value returned is the upper bound of the bucket containing the percentile,
+     * and so may overestimate the true value by up to the histogram's resolution.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency at the percentile, in nanoseconds
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValue(i, subBucketBits) * 1000 + 999, max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear all recorded latencies
+     *
+     * Values recorded concurrently with a call to reset may be partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+}
@@ -0,0 +1,304 @@
+package uk.co.flax.luwak.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.flax.luwak.MonitorMetrics;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A {@link MonitorMetrics} implementation that keeps run, time and hit counters for
+ * each query, along with latency histograms across all queries and documents.
+ *
+ * Use {@link #getSlowestQueries(int)} to find the queries that use the most CPU time.
+ *
+ * Each query's statistics take around 100 bytes of memory.  Latency histograms for
+ * each query can also be recorded, to find queries with high tail latencies; these
+ * have a resolution of a power of two, and take around 350 bytes more per query.
+ *
+ * Statistics are kept for the queries that the Monitor reports as added, and are
+ * removed when a query is deleted.  Runs of unknown or deleted queries are ignored.
+ */
+public class RecordingMonitorMetrics implements MonitorMetrics {
+
+    /**
+     * Statistics for a single query
+     */
+    public static class QueryStats {
+
+        /** The query id */
+        public final String queryId;
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong matches = new AtomicLong();
+        private final LatencyHistogram latency;
+
+        QueryStats(String queryId, boolean recordLatency) {
+            this.queryId = queryId;
+            this.latency = recordLatency ? new LatencyHistogram(0) : null;
+        }
+
+        void record(long nanos, boolean matched) {
+            runs.incrementAndGet();
+            totalTime.addAndGet(nanos);
+            if (matched)
+                matches.incrementAndGet();
+            if (latency != null)
+                latency.record(nanos);
+        }
+
+        void reset() {
+            runs.set(0);
+            totalTime.set(0);
+            matches.set(0);
+            if (latency != null)
+                latency.reset();
+        }
+
+        /**
+         * @return the number of times this query has been run
+         */
+        public long getRuns() {
+            return runs.get();
+        }
+
+        /**
+         * @return the number of times this query has matched
+         */
+        public long getMatches() {
+            return matches.get();
+        }
+
+        /**
+         * @return the proportion of runs of this query that resulted in a match
+         */
+        public double getHitRate() {
+            long runs = getRuns();
+            return runs == 0 ? 0 : matches.get() / (double) runs;
+        }
+
+        /**
+         * @return the total time spent running this query, in nanoseconds
+         */
+        public long getTotalTime() {
+            return totalTime.get();
+        }
+
+        /**
+         * @return the mean time taken to run this query, in nanoseconds
+         */
+        public double getMeanTime() {
+            long runs = getRuns();
+            return runs == 0 ? 0 : getTotalTime() / (double) runs;
+        }
+
+        /**
+         * @return a histogram of the time taken to run this query, or null if per-query
+         *         histograms are not being recorded
+         * @see RecordingMonitorMetrics#RecordingMonitorMetrics(boolean)
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return queryId + ": runs=" + getRuns() + " matches=" + getMatches()
+                    + " total=" + (getTotalTime() / 1000000) + "ms mean=" + (long) (getMeanTime() / 1000) + "us";
+        }
+    }
+
+    private final ConcurrentMap<String, QueryStats> queries = new ConcurrentHashMap<>();
+
+    private final boolean recordQueryLatencies;
+
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LatencyHistogram presearcherLatency = new LatencyHistogram();
+    private final LatencyHistogram documentLatency = new LatencyHistogram();
+    private final AtomicLong candidates = new AtomicLong();
+    private final AtomicLong anyTokenCandidates = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+
+    /**
+     * Create a new RecordingMonitorMetrics
+     * @param recordQueryLatencies true if a latency histogram should be recorded for each query
+     */
+    public RecordingMonitorMetrics(boolean recordQueryLatencies) {
+        this.recordQueryLatencies = recordQueryLatencies;
+    }
+
+    /**
+     * Create a new RecordingMonitorMetrics that does not record per-query latency histograms
+     */
+    public RecordingMonitorMetrics() {
+        this(false);
+    }
+
+    @Override
+    public void queryAdded(String queryId) {
+        if (!queries.containsKey(queryId))
+            queries.putIfAbsent(queryId, new QueryStats(queryId, recordQueryLatencies));
+    }
+
+    @Override
+    public void queryRun(String queryId, long nanos, boolean matched) {
+        queryLatency.record(nanos);
+        // a search that started before a query was deleted may still report a run of it
+        QueryStats stats = queries.get(queryId);
+        if (stats != null)
+            stats.record(nanos, matched);
+    }
+
+    @Override
+    public void queryDeleted(String queryId) {
+        queries.remove(queryId);
+    }
+
+    @Override
+    public void documentMatched(String docId, int candidates, int anyTokenCandidates, int matches,
+                                long presearchNanos, long matchNanos) {
+        presearcherLatency.record(presearchNanos);
+        documentLatency.record(presearchNanos + matchNanos);
+        this.candidates.addAndGet(candidates);
+        this.anyTokenCandidates.addAndGet(anyTokenCandidates);
+        this.matches.addAndGet(matches);
+    }
+
+    /**
+     * Get the statistics for a query
+     * @param queryId the query id
+     * @return the query's statistics, or null if it is not in the Monitor
+     */
+    public QueryStats getQueryStats(String queryId) {
+        return queries.get(queryId);
+    }
+
+    /**
+     * Get the queries that have used the most time
+     * @param count the number of queries to return
+     * @return the statistics for the queries with the highest total match times, slowest first
+     */
+    public List<QueryStats> getSlowestQueries(int count) {
+        Comparator<QueryStats> byTotalTime = new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats o1, QueryStats o2) {
+                return Long.compare(o1.getTotalTime(), o2.getTotalTime());
+            }
+        };
+        PriorityQueue<QueryStats> top = new PriorityQueue<>(Math.max(1, count), byTotalTime);
+        for (QueryStats stats : queries.values()) {
+            if (top.size() < count) {
+                top.add(stats);
+            }
+            else if (count > 0 && byTotalTime.compare(stats, top.peek()) > 0) {
+                top.poll();
+                top.add(stats);
+            }
+        }
+        List<QueryStats> slowest = new ArrayList<>(top);
+        Collections.sort(slowest, Collections.reverseOrder(byTotalTime));
+        return slowest;
+    }
+
+    /**
+     * @return a histogram of the time taken to run each candidate query, across all queries
+     */
+    public LatencyHistogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * @return a histogram of the time taken to build presearcher queries for each document
+     */
+    public LatencyHistogram getPresearcherLatency() {
+        return presearcherLatency;
+    }
+
+    /**
+     * @return a histogram of the total time taken to match each document
+     */
+    public LatencyHistogram getDocumentLatency() {
+        return documentLatency;
+    }
+
+    /**
+     * @return the number of documents matched
+     */
+    public long getDocumentCount() {
+        return documentLatency.getCount();
+    }
+
+    /**
+     * @return the total number of candidate queries selected by the presearcher
+     */
+    public long getCandidateCount() {
+        return candidates.get();
+    }
+
+    /**
+     * @return the total number of candidate queries that were selected because they must be
+     *         run against every document, rather than by a term from the document.  A high
+     *         proportion of these means that many queries could not be indexed by the presearcher.
+     */
+    public long getAnyTokenCandidateCount() {
+        return anyTokenCandidates.get();
+    }
+
+    /**
+     * @return the total number of queries that matched
+     */
+    public long getMatchCount() {
+        return matches.get();
+    }
+
+    /**
+     * @return the proportion of presearcher candidate queries that matched.  Low values
+     *         mean that the presearcher is selecting many queries that do not match.
+     */
+    public double getCandidateHitRate() {
+        long c = candidates.get();
+        return c == 0 ? 0 : matches.get() / (double) c;
+    }
+
+    /**
+     * Forget the statistics for a query
+     * @param queryId the query id
+     */
+    public void remove(String queryId) {
+        queries.remove(queryId);
+    }
+
+    /**
+     * Reset all recorded statistics to zero
+     */
+    public void reset() {
+        for (QueryStats stats : queries.values()) {
+            stats.reset();
+        }
+        queryLatency.reset();
+        presearcherLatency.reset();
+        documentLatency.reset();
+        candidates.set(0);
+        anyTokenCandidates.set(0);
+        matches.set(0);
+    }
+
+}
@@ -0,0 +1,156 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermFilter;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A Filter selecting the queries that were indexed against the presearcher's
+ * ANYTOKEN term, and so must be run against every document.
+ *
+ * The set of queries in each segment of the queryindex is cached as a FixedBitSet,
+ * so the postings for the term are not read for every document.  Bitsets are keyed
+ * on the segment core, and do not include deletions, so they stay valid when a
+ * refresh only deletes queries from an existing segment.  The Monitor calls
+ * {@link #refresh(IndexReader)} whenever its queryindex is refreshed, which builds
+ * the bitsets for new segments.  A segment's bitset is dropped when the segment is
+ * closed, once it has been merged away.  A presearcher may be shared between
+ * several Monitors, so a single filter caches segments from all of their indexes.
+ *
+ * Instances are thread-safe.
+ *
+ * @see TermFilteredPresearcher#createAnyTokenFilter()
+ */
+public class AnyTokenFilter extends Filter {
+
+    // cached for segments with no match-anything queries
+    private static final FixedBitSet EMPTY = new FixedBitSet(0);
+
+    private final Term term;
+
+    private final ConcurrentMap<Object, FixedBitSet> cache = new ConcurrentHashMap<>();
+
+    private final LeafReader.CoreClosedListener evictor = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            cache.remove(ownerCoreCacheKey);
+        }
+    };
+
+    /**
+     * Create a new AnyTokenFilter
+     * @param term the term that match-anything queries are indexed against
+     */
+    public AnyTokenFilter(Term term) {
+        this.term = term;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+        FixedBitSet bits = getBits(context.reader());
+        if (bits == null)
+            return null;
+        return BitsFilteredDocIdSet.wrap(new BitDocIdSet(bits), acceptDocs);
+    }
+
+    /**
+     * Get the queries in a segment that were indexed against the ANYTOKEN term
+     * @param reader the segment reader
+     * @return the queries' docids, including any deleted queries, or null if there are none
+     * @throws IOException on IO errors
+     */
+    public FixedBitSet getBits(LeafReader reader) throws IOException {
+        Object key = reader.getCoreCacheKey();
+        FixedBitSet bits = cache.get(key);
+        if (bits == null) {
+            bits = buildBits(reader);
+            if (bits.cardinality() == 0)
+                bits = EMPTY;
+            FixedBitSet existing = cache.putIfAbsent(key, bits);
+            if (existing != null)
+                bits = existing;
+            else
+                reader.addCoreClosedListener(evictor);
+        }
+        return bits == EMPTY ? null : bits;
+    }
+
+    /**
+     * Build the bitset for a segment
+     * @param reader the segment reader
+     * @return a FixedBitSet of the queries indexed against the ANYTOKEN term
+     * @throws IOException on IO errors
+     */
+    protected FixedBitSet buildBits(LeafReader reader) throws IOException {
+        FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+        DocIdSet docs = new TermFilter(term).getDocIdSet(reader.getContext(), null);
+        DocIdSetIterator it = docs == null ? null : docs.iterator();
+        if (it != null)
+            bits.or(it);
+        return bits;
+    }
+
+    /**
+     * Update the cache for a new view of the queryindex
+     * @param reader the new IndexReader
+     * @throws IOException on IO errors
+     */
+    public void refresh(IndexReader reader) throws IOException {
+        for (LeafReaderContext ctx : reader.leaves()) {
+            getBits(ctx.reader());
+        }
+    }
+
+    /**
+     * @return the number of segments with a cached bitset
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the approximate memory used by the cached bitsets, in bytes
+     */
+    public long ramBytesUsed() {
+        long bytes = 0;
+        for (FixedBitSet bits : cache.values()) {
+            bytes += bits.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "AnyTokenFilter(" + term + ")";
+    }
+
+}
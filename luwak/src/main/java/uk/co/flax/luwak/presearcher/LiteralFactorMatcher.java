@@ -0,0 +1,146 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.util.*;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An Aho-Corasick automaton that finds which of a set of literal strings occur
+ * within a token, in a single pass over the token's characters.
+ *
+ * Instances are immutable once built, and may be shared between threads.
+ */
+class LiteralFactorMatcher {
+
+    static final LiteralFactorMatcher EMPTY = new LiteralFactorMatcher(Collections.<String>emptySet());
+
+    private final Node root;
+    private final int size;
+
+    LiteralFactorMatcher(Set<String> literals) {
+        this.root = new Node();
+        int count = 0;
+        for (String literal : literals) {
+            if (literal.length() == 0)
+                continue;
+            Node node = root;
+            for (int i = 0; i < literal.length(); i++) {
+                node = node.child(literal.charAt(i), true);
+            }
+            if (node.output == null)
+                count++;
+            node.output = literal;
+        }
+        this.size = count;
+        link();
+    }
+
+    /**
+     * @return the number of literals this matcher finds
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find all the literals that occur within a token
+     * @param token the token
+     * @param found a collection to which the literals found are added
+     */
+    void find(CharSequence token, Collection<String> found) {
+        Node node = root;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            Node next = node.child(c, false);
+            while (next == null && node != root) {
+                node = node.fail;
+                next = node.child(c, false);
+            }
+            node = next == null ? root : next;
+            for (Node out = node.output != null ? node : node.outputLink; out != null; out = out.outputLink) {
+                found.add(out.output);
+            }
+        }
+    }
+
+    // Breadth-first traversal to set failure links, which point to the node for the longest
+    // proper suffix of a node's string that is also in the trie, and output links, which
+    // point to the nearest node along the failure chain that ends a literal
+    private void link() {
+        Deque<Node> queue = new ArrayDeque<>();
+        for (Node child : root.children()) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.remove();
+            for (int i = 0; i < node.labels.length; i++) {
+                char c = node.labels[i];
+                Node child = node.nodes[i];
+                Node fail = node.fail;
+                Node target = fail.child(c, false);
+                while (target == null && fail != root) {
+                    fail = fail.fail;
+                    target = fail.child(c, false);
+                }
+                child.fail = target == null ? root : target;
+                child.outputLink = child.fail.output != null ? child.fail : child.fail.outputLink;
+                queue.add(child);
+            }
+        }
+    }
+
+    private static class Node {
+
+        static final char[] NO_LABELS = new char[0];
+        static final Node[] NO_NODES = new Node[0];
+
+        // sorted child labels, with the corresponding child nodes
+        char[] labels = NO_LABELS;
+        Node[] nodes = NO_NODES;
+
+        Node fail;
+        Node outputLink;
+        String output;
+
+        Node child(char c, boolean create) {
+            int pos = Arrays.binarySearch(labels, c);
+            if (pos >= 0)
+                return nodes[pos];
+            if (!create)
+                return null;
+            int insert = -pos - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newNodes = new Node[nodes.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insert);
+            System.arraycopy(nodes, 0, newNodes, 0, insert);
+            System.arraycopy(labels, insert, newLabels, insert + 1, labels.length - insert);
+            System.arraycopy(nodes, insert, newNodes, insert + 1, nodes.length - insert);
+            Node child = new Node();
+            newLabels[insert] = c;
+            newNodes[insert] = child;
+            labels = newLabels;
+            nodes = newNodes;
+            return child;
+        }
+
+        List<Node> children() {
+            return Arrays.asList(nodes);
+        }
+    }
+
+}
@@ -1,17 +1,20 @@
 package uk.co.flax.luwak.presearcher;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
 import uk.co.flax.luwak.termextractor.querytree.TreeAdvancer;
 import uk.co.flax.luwak.termextractor.querytree.QueryTree;
 import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
+import uk.co.flax.luwak.termextractor.weights.TermFrequencyTable;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -47,24 +50,74 @@ import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
  *
  * The number of passes the presearcher makes is configurable.  More passes will improve the
  * selected/matched ratio, but will take longer to index and will use more RAM.
+ *
+ * If a {@link TermFrequencyTable} built from a sample document corpus is supplied,
+ * passes after the first are only indexed for a query if they are estimated to remove a
+ * given proportion of its candidate documents.  Passes that would select most of the
+ * corpus anyway are recorded as skipped, and any document is treated as matching them.
  */
 public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
 
+    /**
+     * Field recording the passes that were not indexed for a query
+     */
+    public static final String SKIPPED_PASSES_FIELD = "__skippedpasses";
+
     private final int passes;
 
     protected final TreeAdvancer advancer;
 
+    private final TermFrequencyTable frequencies;
+
+    private final float minReduction;
+
     /**
-     * Construct a new MultipassTermFilteredPresearcher
-     * @param passes the number of times a query should be indexed
+     * Construct a new MultipassTermFilteredPresearcher that only indexes extra passes for a query
+     * where they are selective over a sample document corpus
+     * @param passes the maximum number of times a query should be indexed
      * @param advancer the Advancer to use
      * @param weightor the TreeWeightor to use
+     * @param frequencies a TermFrequencyTable built from a sample document corpus
+     * @param minReduction the minimum estimated proportion of candidate documents an extra pass
+     *                     must remove for it to be indexed, between 0 and 1
      * @param components the PresearcherComponents to use
      */
-    public MultipassTermFilteredPresearcher(int passes, TreeAdvancer advancer, TreeWeightor weightor, PresearcherComponent... components) {
+    public MultipassTermFilteredPresearcher(int passes, TreeAdvancer advancer, TreeWeightor weightor,
+                                            TermFrequencyTable frequencies, float minReduction,
+                                            PresearcherComponent... components) {
         super(weightor, components);
         this.advancer = advancer;
         this.passes = passes;
+        this.frequencies = frequencies;
+        this.minReduction = minReduction;
+    }
+
+    /**
+     * Construct a new MultipassTermFilteredPresearcher that only indexes extra passes for a query
+     * where they are selective over a sample document corpus, using the default TreeWeightor
+     * and a MinWeightAdvancer
+     * @param passes the maximum number of times a query should be indexed
+     * @param minWeight the minimum weight a query term can have to be advanced over
+     * @param frequencies a TermFrequencyTable built from a sample document corpus
+     * @param minReduction the minimum estimated proportion of candidate documents an extra pass
+     *                     must remove for it to be indexed, between 0 and 1
+     * @param components the PresearcherComponents to use
+     */
+    public MultipassTermFilteredPresearcher(int passes, float minWeight, TermFrequencyTable frequencies,
+                                            float minReduction, PresearcherComponent... components) {
+        this(passes, new TreeAdvancer.MinWeightTreeAdvancer(TreeWeightor.DEFAULT_WEIGHTOR, minWeight),
+                TreeWeightor.DEFAULT_WEIGHTOR, frequencies, minReduction, components);
+    }
+
+    /**
+     * Construct a new MultipassTermFilteredPresearcher
+     * @param passes the number of times a query should be indexed
+     * @param advancer the Advancer to use
+     * @param weightor the TreeWeightor to use
+     * @param components the PresearcherComponents to use
+     */
+    public MultipassTermFilteredPresearcher(int passes, TreeAdvancer advancer, TreeWeightor weightor, PresearcherComponent... components) {
+        this(passes, advancer, weightor, null, 0, components);
     }
 
     /**
@@ -109,26 +162,28 @@ public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
 
     private class MultipassDocumentQueryBuilder implements DocumentQueryBuilder {
 
-        BooleanQuery[] queries = new BooleanQuery[passes];
+        DocumentQueryBuilder[] queries = new DocumentQueryBuilder[passes];
 
         public MultipassDocumentQueryBuilder() {
             for (int i = 0; i < queries.length; i++) {
-                queries[i] = new BooleanQuery();
+                queries[i] = getTermsQueryBuilder();
             }
         }
 
         @Override
         public void addTerm(String field, String term) {
             for (int i = 0; i < passes; i++) {
-                queries[i].add(new TermQuery(new Term(field(field, i), term)), BooleanClause.Occur.SHOULD);
+                queries[i].addTerm(field(field, i), term);
             }
         }
 
         @Override
         public Query build() {
             BooleanQuery parent = new BooleanQuery();
-            for (BooleanQuery child : queries) {
-                parent.add(child, BooleanClause.Occur.MUST);
+            for (int i = 0; i < queries.length; i++) {
+                if (i > 0)
+                    queries[i].addTerm(SKIPPED_PASSES_FIELD, Integer.toString(i));
+                parent.add(queries[i].build(), BooleanClause.Occur.MUST);
             }
             return parent;
         }
@@ -138,22 +193,93 @@ public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
     public Document buildQueryDocument(QueryTree querytree) {
 
         Document doc = new Document();
+        StringBuilder skippedPasses = new StringBuilder();
+
+        // terms already added under each plain field name
+        Map<String, Set<String>> plainTerms = new HashMap<>();
+        Map<String, Set<String>> previousTerms = null;
+        boolean converged = false;
 
         for (int i = 0; i < passes; i++) {
+            if (converged) {
+                // the querytree can't be advanced any further, so all remaining passes
+                // would repeat the last one
+                skippedPasses.append(" ").append(i);
+                continue;
+            }
             Map<String, StringBuilder> fieldTerms = collectTerms(querytree);
             debug(querytree, fieldTerms);
-            for (Map.Entry<String, StringBuilder> entry : fieldTerms.entrySet()) {
-                // we add the index terms once under a suffixed field for the multipass query, and
-                // once under the plan field name for the TermsEnumTokenFilter
-                doc.add(new Field(field(entry.getKey(), i), entry.getValue().toString(), QUERYFIELDTYPE));
-                doc.add(new Field(entry.getKey(), entry.getValue().toString(), QUERYFIELDTYPE));
+            Map<String, Set<String>> terms = splitTerms(fieldTerms);
+            if (i > 0 && (terms.equals(previousTerms) || !isSelective(terms))) {
+                skippedPasses.append(" ").append(i);
+            }
+            else {
+                for (Map.Entry<String, StringBuilder> entry : fieldTerms.entrySet()) {
+                    // we add the index terms once under a suffixed field for the multipass query, and
+                    // once under the plain field name for the TermsEnumTokenFilter
+                    doc.add(new Field(field(entry.getKey(), i), entry.getValue().toString(), QUERYFIELDTYPE));
+                    String newTerms = newTerms(plainTerms, entry.getKey(), terms.get(entry.getKey()));
+                    if (newTerms.length() > 0)
+                        doc.add(new Field(entry.getKey(), newTerms, QUERYFIELDTYPE));
+                }
             }
-            extractor.advancePhase(querytree, advancer);
+            previousTerms = terms;
+            converged = !extractor.advancePhase(querytree, advancer);
         }
 
+        if (skippedPasses.length() > 0)
+            doc.add(new TextField(SKIPPED_PASSES_FIELD, skippedPasses.toString(), Field.Store.NO));
+
         return doc;
     }
 
+    // Estimate whether a pass's terms would remove enough candidates from the sample corpus
+    // to be worth indexing.  The terms are a disjunction, so the proportion of documents
+    // they select is bounded by the sum of their document frequencies.
+    private boolean isSelective(Map<String, Set<String>> fieldTerms) {
+        if (frequencies == null || frequencies.getDocumentCount() == 0)
+            return true;
+        double selected = 0;
+        for (Map.Entry<String, Set<String>> entry : fieldTerms.entrySet()) {
+            if (ANYTOKEN_FIELD.equals(entry.getKey()))
+                return false;
+            for (String term : entry.getValue()) {
+                selected += frequencies.getFrequency(entry.getKey(), term);
+            }
+        }
+        double reduction = 1 - Math.min(1, selected / frequencies.getDocumentCount());
+        return reduction >= minReduction;
+    }
+
+    // Split the collected terms for each field into a set of tokens, as they would be indexed
+    private static Map<String, Set<String>> splitTerms(Map<String, StringBuilder> fieldTerms) {
+        Map<String, Set<String>> terms = new HashMap<>();
+        for (Map.Entry<String, StringBuilder> entry : fieldTerms.entrySet()) {
+            Set<String> tokens = new HashSet<>();
+            for (String token : entry.getValue().toString().split(" ")) {
+                if (token.length() > 0)
+                    tokens.add(token);
+            }
+            terms.put(entry.getKey(), tokens);
+        }
+        return terms;
+    }
+
+    // Return the tokens that have not yet been added under a plain field name, and record them as added
+    private static String newTerms(Map<String, Set<String>> plainTerms, String field, Set<String> tokens) {
+        Set<String> added = plainTerms.get(field);
+        if (added == null) {
+            added = new HashSet<>();
+            plainTerms.put(field, added);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (added.add(token))
+                sb.append(" ").append(token);
+        }
+        return sb.toString();
+    }
+
     /**
      * Override to debug queryindexing
      * @param tree the current QueryTree
@@ -7,6 +7,7 @@ import java.util.Map;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
 import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.termextractor.QueryTerm;
@@ -107,4 +108,15 @@ public class PresearcherComponent {
     public void adjustQueryDocument(Document doc, Map<String, String> metadata) {
 
     }
+
+    /**
+     * Called when the Monitor's query index is refreshed.  By default, does nothing.
+     *
+     * @param reader a reader over the refreshed query index
+     *
+     * @throws java.io.IOException on I/O errors
+     */
+    public void onRefresh(IndexReader reader) throws IOException {
+
+    }
 }
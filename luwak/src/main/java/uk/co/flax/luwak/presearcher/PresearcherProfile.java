@@ -0,0 +1,221 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.util.*;
+
+import org.apache.lucene.index.Term;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Aggregate statistics on how well a presearcher selects queries over a corpus of
+ * documents.
+ *
+ * For each queryindex term used in a presearcher query, the profile records how
+ * many times the term selected a candidate query, and how many of those candidates
+ * went on to match the document.  Terms with low precision are selecting many
+ * queries that do not match, and are good candidates for down-weighting with a
+ * {@link uk.co.flax.luwak.termextractor.querytree.TreeWeightor}.  The same
+ * statistics are recorded for each query.
+ *
+ * @see uk.co.flax.luwak.Monitor#profile(Iterable, uk.co.flax.luwak.MatcherFactory)
+ */
+public class PresearcherProfile {
+
+    /**
+     * Selection statistics for a term or query
+     */
+    public static class SelectionStats {
+
+        long selections = 0;
+        long matches = 0;
+
+        /**
+         * @return the number of times a query was selected as a candidate
+         */
+        public long getSelections() {
+            return selections;
+        }
+
+        /**
+         * @return the number of selections that resulted in a match
+         */
+        public long getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return the number of selections that did not result in a match
+         */
+        public long getFalsePositives() {
+            return selections - matches;
+        }
+
+        /**
+         * @return the proportion of selections that resulted in a match
+         */
+        public double getPrecision() {
+            return selections == 0 ? 0 : matches / (double) selections;
+        }
+
+        void record(boolean matched) {
+            selections++;
+            if (matched)
+                matches++;
+        }
+    }
+
+    /**
+     * Selection statistics for a queryindex term
+     */
+    public static class TermStats extends SelectionStats {
+
+        /** The term */
+        public final Term term;
+
+        TermStats(Term term) {
+            this.term = term;
+        }
+
+        @Override
+        public String toString() {
+            return term + ": selections=" + selections + " matches=" + matches;
+        }
+    }
+
+    /**
+     * Selection statistics for a query
+     */
+    public static class QueryStats extends SelectionStats {
+
+        /** The query id */
+        public final String queryId;
+
+        QueryStats(String queryId) {
+            this.queryId = queryId;
+        }
+
+        @Override
+        public String toString() {
+            return queryId + ": selections=" + selections + " matches=" + matches;
+        }
+    }
+
+    private final Map<Term, TermStats> terms = new HashMap<>();
+    private final Map<String, QueryStats> queries = new HashMap<>();
+
+    private int documents = 0;
+
+    /**
+     * Record that a term selected a candidate query.  Called by the Monitor.
+     * @param term the queryindex term
+     * @param matched true if the candidate query matched the document
+     */
+    public void recordTermSelection(Term term, boolean matched) {
+        TermStats stats = terms.get(term);
+        if (stats == null) {
+            stats = new TermStats(term);
+            terms.put(term, stats);
+        }
+        stats.record(matched);
+    }
+
+    /**
+     * Record that a query was selected as a candidate.  Called by the Monitor.
+     * @param queryId the query id
+     * @param matched true if the query matched the document
+     */
+    public void recordQuerySelection(String queryId, boolean matched) {
+        QueryStats stats = queries.get(queryId);
+        if (stats == null) {
+            stats = new QueryStats(queryId);
+            queries.put(queryId, stats);
+        }
+        stats.record(matched);
+    }
+
+    /**
+     * Record that a document has been profiled.  Called by the Monitor.
+     */
+    public void recordDocument() {
+        documents++;
+    }
+
+    /**
+     * @return the number of documents profiled
+     */
+    public int getDocumentCount() {
+        return documents;
+    }
+
+    /**
+     * Get the statistics for a term
+     * @param term the term
+     * @return the term's statistics, or null if it never selected a query
+     */
+    public TermStats getTermStats(Term term) {
+        return terms.get(term);
+    }
+
+    /**
+     * Get the statistics for a query
+     * @param queryId the query id
+     * @return the query's statistics, or null if it was never selected
+     */
+    public QueryStats getQueryStats(String queryId) {
+        return queries.get(queryId);
+    }
+
+    /**
+     * Get the terms with the lowest precision
+     * @param count the maximum number of terms to return
+     * @param minSelections ignore terms that selected fewer than this many queries
+     * @return the terms with the lowest precision, worst first
+     */
+    public List<TermStats> getWorstTerms(int count, int minSelections) {
+        return worst(terms.values(), count, minSelections);
+    }
+
+    /**
+     * Get the queries with the lowest precision
+     * @param count the maximum number of queries to return
+     * @param minSelections ignore queries that were selected fewer than this many times
+     * @return the queries with the lowest precision, worst first
+     */
+    public List<QueryStats> getWorstQueries(int count, int minSelections) {
+        return worst(queries.values(), count, minSelections);
+    }
+
+    // lowest precision first; for equal precision, the most false positives first
+    private static <S extends SelectionStats> List<S> worst(Collection<S> stats, int count, int minSelections) {
+        List<S> list = new ArrayList<>();
+        for (S s : stats) {
+            if (s.selections >= minSelections)
+                list.add(s);
+        }
+        Collections.sort(list, new Comparator<S>() {
+            @Override
+            public int compare(S o1, S o2) {
+                int c = Double.compare(o1.getPrecision(), o2.getPrecision());
+                if (c != 0)
+                    return c;
+                return Long.compare(o2.getFalsePositives(), o1.getFalsePositives());
+            }
+        });
+        return list.subList(0, Math.min(count, list.size()));
+    }
+
+}
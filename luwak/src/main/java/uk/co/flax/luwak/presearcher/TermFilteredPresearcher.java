@@ -26,12 +26,15 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
 import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.Presearcher;
 import uk.co.flax.luwak.analysis.TermsEnumTokenStream;
@@ -61,9 +64,17 @@ public class TermFilteredPresearcher extends Presearcher {
 
     public static final String ANYTOKEN = "__ANYTOKEN__";
 
+    private final AnyTokenFilter anyTokenFilter;
+
+    /* Caches the ANYTOKEN queries in each segment for metrics reporting, if they are not used to select queries */
+    private final AnyTokenFilter anyTokenCounter;
+
     public TermFilteredPresearcher(TreeWeightor weightor, PresearcherComponent... components) {
         this.extractor = QueryAnalyzer.fromComponents(weightor, components);
         this.components.addAll(Arrays.asList(components));
+        this.anyTokenFilter = createAnyTokenFilter();
+        this.anyTokenCounter = anyTokenFilter == null
+                ? new AnyTokenFilter(new Term(ANYTOKEN_FIELD, ANYTOKEN)) : anyTokenFilter;
     }
 
     public TermFilteredPresearcher(PresearcherComponent... components) {
@@ -98,7 +109,7 @@ public class TermFilteredPresearcher extends Presearcher {
 
             BooleanQuery bq = new BooleanQuery();
             bq.add(presearcherQuery, BooleanClause.Occur.SHOULD);
-            bq.add(new TermQuery(new Term(ANYTOKEN_FIELD, ANYTOKEN)), BooleanClause.Occur.SHOULD);
+            bq.add(anyTokenQuery(), BooleanClause.Occur.SHOULD);
             presearcherQuery = bq;
 
             for (PresearcherComponent component : components) {
@@ -113,7 +124,62 @@ public class TermFilteredPresearcher extends Presearcher {
         }
     }
 
+    private Query anyTokenQuery() {
+        if (anyTokenFilter == null)
+            return new TermQuery(new Term(ANYTOKEN_FIELD, ANYTOKEN));
+        return new ConstantScoreQuery(anyTokenFilter);
+    }
+
+    /**
+     * Create a filter used to select queries that must be run against every document.
+     *
+     * By default this returns null, and queries are selected by a TermQuery on the
+     * ANYTOKEN term, which reads the term's postings for every document.  Override this
+     * to return an {@link AnyTokenFilter}, which caches the ANYTOKEN queries in each segment
+     * of the queryindex as a bitset instead.  This is faster when many queries are indexed
+     * as ANYTOKEN, but the filter does not report positions, so
+     * {@link uk.co.flax.luwak.Monitor#debug(InputDocument, uk.co.flax.luwak.MatcherFactory)}
+     * will not report which queries it selected.
+     *
+     * This is called from the presearcher's constructor.
+     *
+     * @return an AnyTokenFilter, or null
+     */
+    protected AnyTokenFilter createAnyTokenFilter() {
+        return null;
+    }
+
+    @Override
+    public void onRefresh(IndexReader reader) throws IOException {
+        if (anyTokenFilter != null)
+            anyTokenFilter.refresh(reader);
+        for (PresearcherComponent component : components) {
+            component.onRefresh(reader);
+        }
+    }
+
+    @Override
+    public Bits getAnyTokenQueries(LeafReader reader) throws IOException {
+        // bitsets are built the first time a segment is seen, and cached until it is closed
+        return anyTokenCounter.getBits(reader);
+    }
+
     protected DocumentQueryBuilder getQueryBuilder() {
+        return getTermsQueryBuilder();
+    }
+
+    /**
+     * Get a DocumentQueryBuilder that builds a disjunction of all the terms passed to it.
+     *
+     * By default, this builds a BooleanQuery of TermQuery clauses, which allows
+     * {@link uk.co.flax.luwak.Monitor#debug(InputDocument, uk.co.flax.luwak.MatcherFactory)}
+     * to report which terms selected each query.  Override this to return a
+     * {@link TermsFilterDocumentQueryBuilder} to build a single scoreless filter instead,
+     * which is much faster for large documents.
+     *
+     * @return a DocumentQueryBuilder
+     */
+    protected DocumentQueryBuilder getTermsQueryBuilder() {
         return new DocumentQueryBuilder() {
 
             BooleanQuery bq = new BooleanQuery();
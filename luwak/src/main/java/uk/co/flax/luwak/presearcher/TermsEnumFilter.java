@@ -39,6 +39,36 @@ public class TermsEnumFilter implements PerFieldTokenFilter, Closeable {
         this.reader = SlowCompositeReaderWrapper.wrap(DirectoryReader.open(writer, true));
     }
 
+    /**
+     * Create a new TermsEnumFilter over an already-open IndexReader
+     *
+     * The filter takes its own reference on the reader, which is released when
+     * the filter is closed.
+     *
+     * @param reader the IndexReader to filter against
+     * @throws IOException on IO errors
+     */
+    public TermsEnumFilter(IndexReader reader) throws IOException {
+        reader.incRef();
+        this.reader = SlowCompositeReaderWrapper.wrap(reader);
+    }
+
+    /**
+     * Try to take a reference on this filter, for use by a single thread
+     * @return false if the filter has already been released
+     */
+    public boolean tryIncRef() {
+        return reader.tryIncRef();
+    }
+
+    /**
+     * Release a reference taken by {@link #tryIncRef()}
+     * @throws IOException on IO errors
+     */
+    public void decRef() throws IOException {
+        reader.decRef();
+    }
+
     @Override
     public TokenStream filter(String field, TokenStream in) throws IOException {
         Fields fields = reader.fields();
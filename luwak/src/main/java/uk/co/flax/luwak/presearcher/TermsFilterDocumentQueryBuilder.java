@@ -0,0 +1,60 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A DocumentQueryBuilder that builds a single scoreless {@link TermsFilter} over all
+ * the document's terms, rather than a BooleanQuery with a TermQuery clause per term.
+ *
+ * The filter sorts the terms by field and seeks through each field's terms dictionary
+ * once, so it is much cheaper to build and run for large documents than a
+ * BooleanQuery, which must create a Weight and a Scorer for every clause.
+ *
+ * The resulting query does not expose its terms or their positions, so it cannot be
+ * used to report which terms selected a query.  Presearchers using this builder will
+ * not return useful results from
+ * {@link uk.co.flax.luwak.Monitor#debug(uk.co.flax.luwak.InputDocument, uk.co.flax.luwak.MatcherFactory)}
+ * or {@link uk.co.flax.luwak.Monitor#profile(Iterable, uk.co.flax.luwak.MatcherFactory)}.
+ *
+ * @see TermFilteredPresearcher#getTermsQueryBuilder()
+ */
+public class TermsFilterDocumentQueryBuilder implements DocumentQueryBuilder {
+
+    private final List<Term> terms = new ArrayList<>();
+
+    @Override
+    public void addTerm(String field, String term) {
+        terms.add(new Term(field, term));
+    }
+
+    @Override
+    public Query build() {
+        if (terms.isEmpty())
+            return new BooleanQuery();
+        return new ConstantScoreQuery(new TermsFilter(terms));
+    }
+
+}
@@ -0,0 +1,204 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import uk.co.flax.luwak.termextractor.treebuilder.LiteralFactorQueryTreeBuilder;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PresearcherComponent that indexes regexp, wildcard and prefix queries by the literal
+ * factors their terms must contain, and matches them against the factors found in
+ * InputDocument tokens.
+ *
+ * This is an alternative to {@link WildcardNGramPresearcherComponent}.  Rather than
+ * generating every ngram of every document token, the component keeps track of the
+ * factors that have been indexed, and only emits those that occur within a document's
+ * tokens.  The factors are found using an Aho-Corasick automaton built from all the
+ * indexed factors, which is rebuilt when the query index is refreshed, if segments
+ * have been added to or removed from it since the last refresh.  This keeps the
+ * number of presearcher query clauses close to the number of distinct document
+ * terms, at the cost of the automaton's memory.
+ *
+ * Queries using regular expression syntax that cannot be analyzed are indexed as
+ * ANY queries, and are run against every document.
+ */
+public class WildcardAutomatonPresearcherComponent extends PresearcherComponent {
+
+    /** The default prefix with which to mark literal factors */
+    public static final String DEFAULT_FACTOR_PREFIX = "__lit_";
+
+    private final String factorPrefix;
+
+    private final BytesRef factorPrefixBytes;
+
+    private final Set<String> excludedFields;
+
+    private final Map<Object, Set<String>> segmentFactors = new ConcurrentHashMap<>();
+
+    private volatile LiteralFactorMatcher matcher = LiteralFactorMatcher.EMPTY;
+
+    /* Set when a segment is closed, so that the matcher is rebuilt on the next refresh */
+    private volatile boolean dirty = false;
+
+    // Merges close several segments at once, so rather than rebuilding the matcher for each
+    // one, the rebuild waits for the refresh that follows.  Until then the matcher may emit
+    // factors that are no longer indexed, which select nothing.
+    private final LeafReader.CoreClosedListener purgeListener = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            if (segmentFactors.remove(ownerCoreCacheKey) != null)
+                dirty = true;
+        }
+    };
+
+    /**
+     * Create a new WildcardAutomatonPresearcherComponent
+     * @param factorPrefix the prefix with which to mark literal factors in the query index
+     * @param excludedFields a Set of fields to ignore when finding factors in documents
+     */
+    public WildcardAutomatonPresearcherComponent(String factorPrefix, Set<String> excludedFields) {
+        super(new LiteralFactorQueryTreeBuilder.Regexp(factorPrefix),
+              new LiteralFactorQueryTreeBuilder.Wildcard(factorPrefix),
+              new LiteralFactorQueryTreeBuilder.Prefix(factorPrefix));
+        this.factorPrefix = factorPrefix;
+        this.factorPrefixBytes = new BytesRef(factorPrefix);
+        this.excludedFields = excludedFields == null ? new HashSet<String>() : excludedFields;
+    }
+
+    /**
+     * Create a new WildcardAutomatonPresearcherComponent using default settings
+     */
+    public WildcardAutomatonPresearcherComponent() {
+        this(DEFAULT_FACTOR_PREFIX, null);
+    }
+
+    @Override
+    public TokenStream filterDocumentTokens(String field, TokenStream ts) {
+        LiteralFactorMatcher current = matcher;
+        if (excludedFields.contains(field) || current.size() == 0)
+            return ts;
+        return new FactorTokenFilter(ts, current, factorPrefix);
+    }
+
+    @Override
+    public void onRefresh(IndexReader reader) throws IOException {
+        boolean changed = false;
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leaf = ctx.reader();
+            Object key = leaf.getCoreCacheKey();
+            if (segmentFactors.containsKey(key))
+                continue;
+            segmentFactors.put(key, collectFactors(leaf));
+            leaf.addCoreClosedListener(purgeListener);
+            changed = true;
+        }
+        if (changed || dirty)
+            rebuildMatcher();
+    }
+
+    /**
+     * @return the number of distinct literal factors in the query index
+     */
+    public int getFactorCount() {
+        return matcher.size();
+    }
+
+    private Set<String> collectFactors(LeafReader reader) throws IOException {
+        Set<String> factors = new HashSet<>();
+        Fields fields = reader.fields();
+        if (fields == null)
+            return factors;
+        for (String field : fields) {
+            Terms terms = fields.terms(field);
+            if (terms == null)
+                continue;
+            TermsEnum te = terms.iterator(null);
+            if (te.seekCeil(factorPrefixBytes) == TermsEnum.SeekStatus.END)
+                continue;
+            BytesRef term = te.term();
+            while (term != null && StringHelper.startsWith(term, factorPrefixBytes)) {
+                factors.add(term.utf8ToString().substring(factorPrefix.length()));
+                term = te.next();
+            }
+        }
+        return factors;
+    }
+
+    private synchronized void rebuildMatcher() {
+        dirty = false;
+        Set<String> factors = new HashSet<>();
+        for (Set<String> segment : segmentFactors.values()) {
+            factors.addAll(segment);
+        }
+        matcher = new LiteralFactorMatcher(factors);
+    }
+
+    // Emits each input token, followed by the marked factors found within it.  Each factor
+    // is only emitted once per stream.
+    private static class FactorTokenFilter extends TokenFilter {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+        private final LiteralFactorMatcher matcher;
+        private final String factorPrefix;
+
+        private final Deque<String> pending = new ArrayDeque<>();
+        private final Set<String> emitted = new HashSet<>();
+        private final List<String> found = new ArrayList<>();
+
+        FactorTokenFilter(TokenStream input, LiteralFactorMatcher matcher, String factorPrefix) {
+            super(input);
+            this.matcher = matcher;
+            this.factorPrefix = factorPrefix;
+        }
+
+        @Override
+        public final boolean incrementToken() throws IOException {
+            if (!pending.isEmpty()) {
+                termAtt.setEmpty().append(pending.remove());
+                return true;
+            }
+            if (!input.incrementToken())
+                return false;
+            found.clear();
+            matcher.find(termAtt, found);
+            for (String factor : found) {
+                String token = factorPrefix + factor;
+                if (emitted.add(token))
+                    pending.add(token);
+            }
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            pending.clear();
+            emitted.clear();
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package uk.co.flax.luwak.termextractor.treebuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.WildcardQuery;
+import uk.co.flax.luwak.termextractor.QueryAnalyzer;
+import uk.co.flax.luwak.termextractor.QueryTerm;
+import uk.co.flax.luwak.termextractor.QueryTreeBuilder;
+import uk.co.flax.luwak.termextractor.querytree.AnyNode;
+import uk.co.flax.luwak.termextractor.querytree.ConjunctionNode;
+import uk.co.flax.luwak.termextractor.querytree.QueryTree;
+import uk.co.flax.luwak.termextractor.querytree.TermNode;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Extracts the literal factors of a multi-term query: the runs of literal characters
+ * that every term matched by the query must contain.
+ *
+ * The factors are combined into a conjunction, so the TreeWeightor selects the best
+ * factor to index.  Each factor is marked with a prefix so that it can be distinguished
+ * from ordinary terms in the query index.  Queries with no literal factors, or using
+ * regular expression syntax that this builder does not understand, are indexed as
+ * ANY queries.
+ *
+ * Regular expressions may use literal and escaped characters, '.', character classes,
+ * and the quantifiers '*', '+', '?' and '{}'.  Groups, alternation and the other
+ * operators are not analyzed.
+ *
+ * @see uk.co.flax.luwak.presearcher.WildcardAutomatonPresearcherComponent
+ */
+public abstract class LiteralFactorQueryTreeBuilder<T extends MultiTermQuery> extends QueryTreeBuilder<T> {
+
+    protected final String factorPrefix;
+
+    protected LiteralFactorQueryTreeBuilder(Class<T> cls, String factorPrefix) {
+        super(cls);
+        this.factorPrefix = factorPrefix;
+    }
+
+    /**
+     * Get the literal factors of a query
+     * @param query the query
+     * @return a list of factors, or null if they cannot be determined
+     */
+    protected abstract List<String> factors(T query);
+
+    @Override
+    public QueryTree buildTree(QueryAnalyzer builder, T query) {
+        List<String> factors = factors(query);
+        if (factors == null || factors.isEmpty())
+            return new AnyNode(query.getField(), query.toString());
+        List<QueryTree> children = new ArrayList<>();
+        for (String factor : factors) {
+            children.add(new TermNode(new QueryTerm(query.getField(), factorPrefix + factor, QueryTerm.Type.EXACT)));
+        }
+        return ConjunctionNode.build(children);
+    }
+
+    /**
+     * Builds trees for {@link RegexpQuery}
+     */
+    public static class Regexp extends LiteralFactorQueryTreeBuilder<RegexpQuery> {
+
+        public Regexp(String factorPrefix) {
+            super(RegexpQuery.class, factorPrefix);
+        }
+
+        @Override
+        protected List<String> factors(RegexpQuery query) {
+            return regexpFactors(RegexpNGramTermQueryTreeBuilder.parseOutRegexp(query.toString("")));
+        }
+    }
+
+    /**
+     * Builds trees for {@link WildcardQuery}
+     */
+    public static class Wildcard extends LiteralFactorQueryTreeBuilder<WildcardQuery> {
+
+        public Wildcard(String factorPrefix) {
+            super(WildcardQuery.class, factorPrefix);
+        }
+
+        @Override
+        protected List<String> factors(WildcardQuery query) {
+            return wildcardFactors(query.getTerm().text());
+        }
+    }
+
+    /**
+     * Builds trees for {@link PrefixQuery}
+     */
+    public static class Prefix extends LiteralFactorQueryTreeBuilder<PrefixQuery> {
+
+        public Prefix(String factorPrefix) {
+            super(PrefixQuery.class, factorPrefix);
+        }
+
+        @Override
+        protected List<String> factors(PrefixQuery query) {
+            return toList(new FactorCollector().append(query.getPrefix().text()).finish());
+        }
+    }
+
+    /**
+     * Find the literal factors of a wildcard pattern
+     * @param pattern the pattern
+     * @return the literal factors
+     */
+    public static List<String> wildcardFactors(String pattern) {
+        FactorCollector factors = new FactorCollector();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == WildcardQuery.WILDCARD_STRING || c == WildcardQuery.WILDCARD_CHAR)
+                factors.breakFactor();
+            else if (c == WildcardQuery.WILDCARD_ESCAPE && i + 1 < pattern.length())
+                factors.append(pattern.charAt(++i));
+            else
+                factors.append(c);
+        }
+        return toList(factors.finish());
+    }
+
+    /**
+     * Find the literal factors of a regular expression
+     * @param regexp the regular expression
+     * @return the literal factors, or null if the expression uses unsupported syntax
+     */
+    public static List<String> regexpFactors(String regexp) {
+        FactorCollector factors = new FactorCollector();
+        int i = 0;
+        while (i < regexp.length()) {
+            char c = regexp.charAt(i);
+            String literal = null;
+            switch (c) {
+                case '.':
+                    i++;
+                    break;
+                case '[':
+                    int close = regexp.indexOf(']', i + 2);
+                    if (close == -1 || regexp.substring(i, close).indexOf('\\') != -1)
+                        return null;
+                    i = close + 1;
+                    break;
+                case '\\':
+                    if (i + 1 >= regexp.length())
+                        return null;
+                    literal = regexp.substring(i + 1, i + 2);
+                    i += 2;
+                    break;
+                case '*': case '+': case '?': case '{': case '}': case ']':
+                case '(': case ')': case '|': case '&': case '~': case '#':
+                case '@': case '<': case '>': case '"':
+                    return null;
+                default:
+                    literal = regexp.substring(i, i + 1);
+                    i++;
+            }
+
+            char quantifier = i < regexp.length() ? regexp.charAt(i) : 0;
+            if (quantifier == '*' || quantifier == '?') {
+                // the atom is optional
+                factors.breakFactor();
+                i++;
+            }
+            else if (quantifier == '{') {
+                int close = regexp.indexOf('}', i);
+                if (close == -1)
+                    return null;
+                String min = regexp.substring(i + 1, close).split(",", -1)[0].trim();
+                if (literal != null && !min.isEmpty() && !min.equals("0")) {
+                    factors.append(literal);
+                    factors.restartFactor(literal);
+                }
+                else {
+                    factors.breakFactor();
+                }
+                i = close + 1;
+            }
+            else if (quantifier == '+') {
+                // the atom may repeat, so it ends one factor and starts the next
+                if (literal != null) {
+                    factors.append(literal);
+                    factors.restartFactor(literal);
+                }
+                else {
+                    factors.breakFactor();
+                }
+                i++;
+            }
+            else if (literal != null) {
+                factors.append(literal);
+            }
+            else {
+                factors.breakFactor();
+            }
+        }
+        return toList(factors.finish());
+    }
+
+    private static List<String> toList(Set<String> factors) {
+        return new ArrayList<>(factors);
+    }
+
+    private static class FactorCollector {
+
+        final Set<String> factors = new LinkedHashSet<>();
+        StringBuilder current = new StringBuilder();
+
+        FactorCollector append(char c) {
+            if (Character.isWhitespace(c))
+                breakFactor();
+            else
+                current.append(c);
+            return this;
+        }
+
+        FactorCollector append(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                append(s.charAt(i));
+            }
+            return this;
+        }
+
+        void breakFactor() {
+            if (current.length() > 0)
+                factors.add(current.toString());
+            current = new StringBuilder();
+        }
+
+        void restartFactor(String start) {
+            breakFactor();
+            append(start);
+        }
+
+        Set<String> finish() {
+            breakFactor();
+            return factors;
+        }
+    }
+
+}
@@ -0,0 +1,397 @@
+package uk.co.flax.luwak.termextractor.weights;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+import uk.co.flax.luwak.InputDocument;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An immutable table of term frequencies, keyed on field and term, and stored
+ * in an FST.
+ *
+ * Frequencies may also be stored for a term regardless of field.  Small tables
+ * that only hold frequencies regardless of field are kept in a HashMap instead,
+ * which is quicker to look up.  Lookups are thread-safe.
+ *
+ * Build a table from a sample corpus of documents with a {@link Builder}:
+ * <pre>
+ *     TermFrequencyTable.Builder builder = new TermFrequencyTable.Builder();
+ *     for (InputDocument doc : sample) {
+ *         builder.addDocument(doc);
+ *     }
+ *     TreeWeightor weightor = TermFrequencyWeightPolicy.weightor(builder.build());
+ * </pre>
+ *
+ * @see TermFrequencyWeightPolicy
+ */
+public class TermFrequencyTable {
+
+    private static final byte FIELD_TERM = 0;
+    private static final byte ANY_FIELD_TERM = 1;
+    private static final byte SEPARATOR = 0;
+
+    /* Tables holding no more than this many frequencies, none of them field-specific, use a HashMap */
+    private static final int MAX_MAP_SIZE = 10000;
+
+    private final FST<Long> fst;
+    private final Map<String, Integer> anyFieldFrequencies;
+    private final boolean hasFieldTerms;
+    private final boolean hasAnyFieldTerms;
+    private final int documentCount;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private TermFrequencyTable(FST<Long> fst, boolean hasFieldTerms, boolean hasAnyFieldTerms, int documentCount) {
+        this.fst = fst;
+        this.anyFieldFrequencies = null;
+        this.hasFieldTerms = hasFieldTerms;
+        this.hasAnyFieldTerms = hasAnyFieldTerms;
+        this.documentCount = documentCount;
+    }
+
+    private TermFrequencyTable(Map<String, Integer> anyFieldFrequencies, int documentCount) {
+        this.fst = null;
+        this.anyFieldFrequencies = anyFieldFrequencies;
+        this.hasFieldTerms = false;
+        this.hasAnyFieldTerms = !anyFieldFrequencies.isEmpty();
+        this.documentCount = documentCount;
+    }
+
+    /**
+     * Get the frequency of a term
+     * @param field the field, or null to get the frequency stored for the term regardless of field
+     * @param term the term
+     * @return the term's frequency, or 0 if it is not in the table
+     */
+    public int getFrequency(String field, String term) {
+        if (field == null)
+            return getAnyFieldFrequency(term, 0);
+        if (!hasFieldTerms)
+            return 0;
+        Scratch sc = scratch.get();
+        sc.fieldKey(field, term);
+        return lookup(sc.key.get(), 0);
+    }
+
+    /**
+     * Get the frequency of a term in a field, or if there is none, the frequency stored
+     * for the term regardless of field
+     *
+     * This is equivalent to calling {@link #getFrequency(String, String)} with the field
+     * and then with null, but encodes the term only once, and skips lookups for kinds of
+     * frequency that the table does not hold.
+     *
+     * @param field the field
+     * @param term the term
+     * @return the term's frequency, or 0 if it is not in the table
+     */
+    public int getFrequencyOrAnyField(String field, String term) {
+        return getFrequencyOrAnyField(field, term, 0);
+    }
+
+    /**
+     * Get the frequency of a term in a field, or if there is none, the frequency stored
+     * for the term regardless of field
+     *
+     * Use this to tell terms that are not in the table apart from terms that are stored
+     * with a frequency of 0.
+     *
+     * @param field the field
+     * @param term the term
+     * @param missing the value to return if the term is not in the table
+     * @return the term's frequency, or {@code missing} if it is not in the table
+     */
+    public int getFrequencyOrAnyField(String field, String term, int missing) {
+        if (field == null || !hasFieldTerms)
+            return getAnyFieldFrequency(term, missing);
+        Scratch sc = scratch.get();
+        int separator = sc.fieldKey(field, term);
+        int frequency = lookup(sc.key.get(), missing);
+        if (frequency != missing || !hasAnyFieldTerms)
+            return frequency;
+        // the field-independent key is the term preceded by a marker byte, so overwrite
+        // the separator in front of the encoded term rather than encoding it again
+        sc.key.setByteAt(separator, ANY_FIELD_TERM);
+        return lookup(new BytesRef(sc.key.bytes(), separator, sc.key.length() - separator), missing);
+    }
+
+    private int getAnyFieldFrequency(String term, int missing) {
+        if (!hasAnyFieldTerms)
+            return missing;
+        if (anyFieldFrequencies != null) {
+            Integer frequency = anyFieldFrequencies.get(term);
+            return frequency == null ? missing : frequency;
+        }
+        Scratch sc = scratch.get();
+        sc.key.clear();
+        sc.key.append(ANY_FIELD_TERM);
+        sc.appendUTF8(term);
+        return lookup(sc.key.get(), missing);
+    }
+
+    private int lookup(BytesRef key, int missing) {
+        try {
+            Long frequency = Util.get(fst, key);
+            return frequency == null ? missing : frequency.intValue();
+        }
+        catch (IOException e) {
+            // the FST is held in memory, so this shouldn't happen...
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Per-thread buffers for building lookup keys without allocating
+    private static class Scratch {
+
+        final BytesRefBuilder key = new BytesRefBuilder();
+        final BytesRefBuilder utf8 = new BytesRefBuilder();
+
+        void appendUTF8(String s) {
+            utf8.copyChars(s);
+            key.append(utf8.bytes(), 0, utf8.length());
+        }
+
+        // Build a field-specific key, returning the position of the separator before the term
+        int fieldKey(String field, String term) {
+            key.clear();
+            key.append(FIELD_TERM);
+            appendUTF8(field);
+            int separator = key.length();
+            key.append(SEPARATOR);
+            appendUTF8(term);
+            return separator;
+        }
+    }
+
+    /**
+     * @return the number of documents used to build this table
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * @return the approximate memory used by this table, in bytes
+     */
+    public long ramBytesUsed() {
+        if (anyFieldFrequencies != null) {
+            // a hash entry, a String and its chars, and an Integer for each term
+            long size = 0;
+            for (String term : anyFieldFrequencies.keySet()) {
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER * 4 + RamUsageEstimator.NUM_BYTES_OBJECT_REF * 4
+                        + RamUsageEstimator.NUM_BYTES_INT * 4 + RamUsageEstimator.NUM_BYTES_CHAR * term.length();
+            }
+            return size;
+        }
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    private static BytesRef key(BytesRefBuilder builder, String field, String term) {
+        builder.clear();
+        if (field == null) {
+            builder.append(ANY_FIELD_TERM);
+        }
+        else {
+            builder.append(FIELD_TERM);
+            builder.append(new BytesRef(field));
+            builder.append(SEPARATOR);
+        }
+        builder.append(new BytesRef(term));
+        return builder.get();
+    }
+
+    /**
+     * Create a table from a map of terms to frequencies, not specific to any field
+     * @param frequencies a map of terms to frequencies
+     * @return a TermFrequencyTable
+     */
+    public static TermFrequencyTable fromMap(Map<String, Integer> frequencies) {
+        Builder builder = new Builder();
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            builder.add(null, entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds a TermFrequencyTable.  Builders are not thread-safe.
+     */
+    public static class Builder {
+
+        private final BytesRefHash keys = new BytesRefHash();
+        private int[] frequencies = new int[16];
+        private int documentCount = 0;
+
+        private final BytesRefBuilder scratch = new BytesRefBuilder();
+
+        /**
+         * Add to the frequency of a term
+         * @param field the field, or null if the frequency is not specific to a field
+         * @param term the term
+         * @param frequency the amount to add to the term's frequency
+         * @return this Builder
+         */
+        public Builder add(String field, String term, int frequency) {
+            return add(key(scratch, field, term), frequency);
+        }
+
+        private Builder add(BytesRef key, int frequency) {
+            int ord = keys.add(key);
+            if (ord < 0) {
+                ord = -ord - 1;
+            }
+            else {
+                frequencies = ArrayUtil.grow(frequencies, ord + 1);
+            }
+            frequencies[ord] += frequency;
+            return this;
+        }
+
+        /**
+         * Add the terms from a document, so that each term's frequency is the number
+         * of documents it appears in.  The terms are taken from the document's index,
+         * and so have been through the same analysis as documents passed to the Monitor.
+         * @param doc the InputDocument
+         * @return this Builder
+         * @throws IOException on IO errors
+         */
+        public Builder addDocument(InputDocument doc) throws IOException {
+            LeafReader reader = doc.asAtomicReader();
+            Fields fields = reader.fields();
+            for (String field : fields) {
+                Terms terms = fields.terms(field);
+                if (terms == null)
+                    continue;
+                TermsEnum te = terms.iterator(null);
+                BytesRef term;
+                while ((term = te.next()) != null) {
+                    scratch.clear();
+                    scratch.append(FIELD_TERM);
+                    scratch.append(new BytesRef(field));
+                    scratch.append(SEPARATOR);
+                    scratch.append(term);
+                    add(scratch.get(), 1);
+                }
+            }
+            documentCount++;
+            return this;
+        }
+
+        /**
+         * Add the terms from a number of documents
+         * @param docs the InputDocuments
+         * @return this Builder
+         * @throws IOException on IO errors
+         * @see #addDocument(InputDocument)
+         */
+        public Builder addDocuments(Iterable<InputDocument> docs) throws IOException {
+            for (InputDocument doc : docs) {
+                addDocument(doc);
+            }
+            return this;
+        }
+
+        /**
+         * @return a TermFrequencyTable holding the frequencies added to this Builder
+         */
+        public TermFrequencyTable build() {
+            boolean hasFieldTerms = false, hasAnyFieldTerms = false;
+            int count = 0;
+            BytesRef key = new BytesRef();
+            for (int ord = 0; ord < keys.size(); ord++) {
+                if (frequencies[ord] <= 0)
+                    continue;
+                count++;
+                keys.get(ord, key);
+                if (key.bytes[key.offset] == FIELD_TERM)
+                    hasFieldTerms = true;
+                else
+                    hasAnyFieldTerms = true;
+            }
+
+            if (!hasFieldTerms && count <= MAX_MAP_SIZE) {
+                Map<String, Integer> anyFieldFrequencies = new HashMap<>();
+                for (int ord = 0; ord < keys.size(); ord++) {
+                    if (frequencies[ord] <= 0)
+                        continue;
+                    keys.get(ord, key);
+                    String term = new BytesRef(key.bytes, key.offset + 1, key.length - 1).utf8ToString();
+                    anyFieldFrequencies.put(term, frequencies[ord]);
+                }
+                return new TermFrequencyTable(anyFieldFrequencies, documentCount);
+            }
+
+            try {
+                // FST inputs must be added in sorted order
+                Integer[] ords = new Integer[keys.size()];
+                final BytesRef[] terms = new BytesRef[keys.size()];
+                for (int i = 0; i < ords.length; i++) {
+                    ords[i] = i;
+                    terms[i] = keys.get(i, new BytesRef());
+                }
+                Arrays.sort(ords, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return terms[o1].compareTo(terms[o2]);
+                    }
+                });
+
+                PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+                org.apache.lucene.util.fst.Builder<Long> builder
+                        = new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE1, outputs);
+                IntsRefBuilder intsRef = new IntsRefBuilder();
+                for (int ord : ords) {
+                    // terms stored with a frequency of 0 are kept, so they can be told apart from unknown terms
+                    if (frequencies[ord] > 0)
+                        builder.add(Util.toIntsRef(terms[ord], intsRef), (long) frequencies[ord]);
+                    else if (frequencies[ord] == 0)
+                        builder.add(Util.toIntsRef(terms[ord], intsRef), outputs.getNoOutput());
+                }
+                return new TermFrequencyTable(builder.finish(), hasFieldTerms, hasAnyFieldTerms, documentCount);
+            }
+            catch (IOException e) {
+                // the FST is built in memory, so this shouldn't happen...
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+}
@@ -3,6 +3,7 @@ package uk.co.flax.luwak.termextractor.weights;
 import java.util.Map;
 
 import uk.co.flax.luwak.termextractor.QueryTerm;
+import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -22,12 +23,16 @@ import uk.co.flax.luwak.termextractor.QueryTerm;
 
 /**
  * Weights more infrequent terms more highly
+ *
+ * Frequencies are looked up in a {@link TermFrequencyTable}, first for the term's
+ * field, and then for the term regardless of field.
  */
 public class TermFrequencyWeightPolicy extends WeightPolicy {
 
-    final Map<String, Integer> frequencies;
+    final TermFrequencyTable frequencies;
     final float n;
     final float k;
+    final float unknownWeight;
 
     /**
      * Creates a TermFrequencyNorm
@@ -37,17 +42,53 @@ public class TermFrequencyWeightPolicy extends WeightPolicy {
      * @param norms WeightNorms to use for further normalization
      */
     public TermFrequencyWeightPolicy(Map<String, Integer> frequencies, float n, float k, WeightNorm... norms) {
+        this(TermFrequencyTable.fromMap(frequencies), n, k, 1, norms);
+    }
+
+    /**
+     * Creates a TermFrequencyNorm
+     *
+     * Terms that are not in the frequency table are given a weight of n + k, the
+     * same as a term seen once.  Terms stored with a frequency of 0 were never seen,
+     * and are given an infinite weight, so they are always preferred.
+     *
+     * @param frequencies a table of term frequencies, built from a sample document corpus
+     * @param n scaling factor to use for frequencies
+     * @param k minimum weight to scale to
+     * @param norms WeightNorms to use for further normalization
+     */
+    public TermFrequencyWeightPolicy(TermFrequencyTable frequencies, float n, float k, WeightNorm... norms) {
+        this(frequencies, n, k, n + k, norms);
+    }
+
+    private TermFrequencyWeightPolicy(TermFrequencyTable frequencies, float n, float k, float unknownWeight,
+                                      WeightNorm... norms) {
         super(norms);
         this.frequencies = frequencies;
         this.n = n;
         this.k = k;
+        this.unknownWeight = unknownWeight;
     }
 
     @Override
     public float weighTerm(QueryTerm term) {
-        if (this.frequencies.containsKey(term.term))
-            return (n / this.frequencies.get(term.term)) + k;
-        return 1;
+        int frequency = frequencies.getFrequencyOrAnyField(term.field, term.term, -1);
+        if (frequency < 0)
+            return unknownWeight;
+        if (frequency == 0)
+            return Float.POSITIVE_INFINITY;
+        return (n / frequency) + k;
+    }
+
+    /**
+     * Create a TreeWeightor that prefers terms that are rare in a document corpus, so
+     * that conjunctions are indexed by their rarest terms
+     * @param frequencies a table of term frequencies, built from a sample document corpus
+     * @param norms WeightNorms to use for further normalization
+     * @return a TreeWeightor
+     */
+    public static TreeWeightor weightor(TermFrequencyTable frequencies, WeightNorm... norms) {
+        return new TreeWeightor(new TermFrequencyWeightPolicy(frequencies, 1, 0, norms), new MinWeightCombiner());
     }
 
 }
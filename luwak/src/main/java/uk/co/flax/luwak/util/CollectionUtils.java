@@ -1,8 +1,6 @@
 package uk.co.flax.luwak.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -44,4 +42,49 @@ public final class CollectionUtils {
         }
         return list;
     }
+
+    /**
+     * Partition a list of items into slices of approximately equal total cost
+     *
+     * Items are assigned in descending order of cost, each to the slice with the
+     * lowest total cost so far (longest-processing-time-first scheduling).  Items
+     * of equal cost keep their relative order.
+     *
+     * @param items the items to partition
+     * @param costs the cost of each item, indexed in the same order as the items
+     * @param slices the number of slices to create
+     * @param <T> the type of item
+     * @return a list of slices
+     */
+    public static <T> List<List<T>> partition(List<T> items, final double[] costs, int slices) {
+        if (costs.length != items.size())
+            throw new IllegalArgumentException("Expected " + items.size() + " costs, but got " + costs.length);
+
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(costs[o2], costs[o1]);
+            }
+        });
+
+        List<List<T>> list = new ArrayList<>(slices);
+        for (int i = 0; i < slices; i++) {
+            list.add(new ArrayList<T>());
+        }
+        double[] totals = new double[slices];
+        for (int item : order) {
+            int slice = 0;
+            for (int i = 1; i < slices; i++) {
+                if (totals[i] < totals[slice])
+                    slice = i;
+            }
+            list.get(slice).add(items.get(item));
+            totals[slice] += costs[item];
+        }
+        return list;
+    }
 }
@@ -0,0 +1,147 @@
+package uk.co.flax.luwak.util;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.*;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A MultiTermQuery that enumerates terms by intersecting a document's term dictionary
+ * with an automaton compiled when the query is created.
+ *
+ * FuzzyQuery builds its Levenshtein automata each time it enumerates a reader's terms,
+ * which for a monitor means once for every document the query is run against.  Wrapping
+ * the query in a CompiledAutomatonQuery builds the automaton once, and reuses it for
+ * every document.
+ *
+ * The wrapped query's rewrite method and boost are preserved.  Term-level boosts from
+ * fuzzy matching are not, so scoring matchers may report different scores for wrapped
+ * FuzzyQueries.
+ */
+public class CompiledAutomatonQuery extends MultiTermQuery {
+
+    private final MultiTermQuery original;
+    private final CompiledAutomaton compiled;
+
+    /**
+     * Create a new CompiledAutomatonQuery
+     * @param original the query to wrap
+     * @param automaton an automaton accepting the same terms as the original query
+     */
+    public CompiledAutomatonQuery(MultiTermQuery original, Automaton automaton) {
+        super(original.getField());
+        this.original = original;
+        this.compiled = new CompiledAutomaton(automaton);
+        setRewriteMethod(original.getRewriteMethod());
+        setBoost(original.getBoost());
+    }
+
+    /**
+     * Compile a MultiTermQuery's automaton
+     * @param query the query
+     * @return a CompiledAutomatonQuery wrapping the query, or null if the query's
+     *          automaton cannot be built ahead of time
+     */
+    public static CompiledAutomatonQuery compile(MultiTermQuery query) {
+        try {
+            if (query.getClass() == FuzzyQuery.class)
+                return new CompiledAutomatonQuery(query, fuzzyAutomaton((FuzzyQuery) query));
+        }
+        catch (RuntimeException e) {
+            // automaton too complex to determinize; leave it to the original query
+        }
+        return null;
+    }
+
+    // Mirrors the automata built by FuzzyTermsEnum: an exact prefix followed by a
+    // Levenshtein automaton over the rest of the term
+    private static Automaton fuzzyAutomaton(FuzzyQuery query) {
+        String text = query.getTerm().text();
+        int prefixLength = Math.min(query.getPrefixLength(), text.codePointCount(0, text.length()));
+        int split = text.offsetByCodePoints(0, prefixLength);
+        LevenshteinAutomata builder = new LevenshteinAutomata(text.substring(split), query.getTranspositions());
+        Automaton automaton = builder.toAutomaton(query.getMaxEdits());
+        if (split == 0)
+            return automaton;
+        return Operations.concatenate(Automata.makeString(text.substring(0, split)), automaton);
+    }
+
+    @Override
+    protected TermsEnum getTermsEnum(Terms terms, AttributeSource atts) throws IOException {
+        return compiled.getTermsEnum(terms);
+    }
+
+    /**
+     * @return the query wrapped by this CompiledAutomatonQuery
+     */
+    public MultiTermQuery getOriginalQuery() {
+        return original;
+    }
+
+    /**
+     * @return the approximate memory used by the compiled automaton
+     */
+    public long ramBytesUsed() {
+        long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER * 2;
+        if (compiled.automaton != null) {
+            // states hold a transition offset and count, transitions a destination and a label range
+            size += RamUsageEstimator.NUM_BYTES_ARRAY_HEADER * 2
+                    + (long) compiled.automaton.getNumStates() * 2 * RamUsageEstimator.NUM_BYTES_INT
+                    + (long) compiled.automaton.getNumTransitions() * 3 * RamUsageEstimator.NUM_BYTES_INT;
+        }
+        if (compiled.runAutomaton != null) {
+            int states = compiled.runAutomaton.getSize();
+            int points = compiled.runAutomaton.getCharIntervals().length;
+            size += RamUsageEstimator.NUM_BYTES_ARRAY_HEADER * 4
+                    + (long) states * points * RamUsageEstimator.NUM_BYTES_INT
+                    + (long) points * RamUsageEstimator.NUM_BYTES_INT
+                    + (long) states
+                    + 256L * RamUsageEstimator.NUM_BYTES_INT;
+        }
+        if (compiled.term != null)
+            size += RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + compiled.term.length;
+        if (compiled.commonSuffixRef != null)
+            size += RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + compiled.commonSuffixRef.length;
+        return size;
+    }
+
+    @Override
+    public String toString(String field) {
+        return original.toString(field);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompiledAutomatonQuery that = (CompiledAutomatonQuery) o;
+        return getBoost() == that.getBoost() && original.equals(that.original);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * original.hashCode() + Float.floatToIntBits(getBoost());
+    }
+
+}
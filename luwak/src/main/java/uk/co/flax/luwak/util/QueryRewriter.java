@@ -0,0 +1,204 @@
+package uk.co.flax.luwak.util;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.*;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Rewrites queries ahead of time, where the result of the rewrite does not depend
+ * on the index being searched.
+ *
+ * IndexSearcher rewrites a query against each reader it searches, repeating until
+ * the query no longer changes.  For queries made up only of term, phrase, boolean
+ * and span queries, the rewritten form is the same for any reader, so it can be
+ * computed once and reused for every document.  Searching an already-rewritten
+ * query then returns from the rewrite loop immediately.
+ *
+ * Queries whose rewrite reads the index, such as MultiTermQuery subclasses, or whose
+ * type is not known, are not rewritten.  Subclasses of the known query types may
+ * override rewrite(), so they are not rewritten either.  MultiTermQueries whose
+ * automata would otherwise be rebuilt for every document can instead have their
+ * automata compiled ahead of time, using {@link #compileAutomata(Query)}.
+ */
+public final class QueryRewriter {
+
+    private QueryRewriter() {}
+
+    // an empty reader to pass to rewrite(); the queries we rewrite never read it
+    private static final IndexReader EMPTY_READER = new MemoryIndex().createSearcher().getIndexReader();
+
+    private static final int MAX_REWRITES = 32;
+
+    /**
+     * Rewrite a query if its rewritten form does not depend on the index being searched
+     * @param query the query to rewrite
+     * @return the rewritten query, or null if the query cannot be rewritten ahead of time
+     */
+    public static Query rewrite(Query query) {
+        if (query == null || !isReaderIndependent(query))
+            return null;
+        try {
+            Query rewritten = query;
+            for (int i = 0; i < MAX_REWRITES; i++) {
+                Query next = rewritten.rewrite(EMPTY_READER);
+                if (next == rewritten)
+                    return rewritten;
+                if (!isReaderIndependent(next))
+                    return null;
+                rewritten = next;
+            }
+            return null;
+        }
+        catch (IOException | RuntimeException e) {
+            // leave it to be rewritten at search time, which will report any errors
+            return null;
+        }
+    }
+
+    /**
+     * Check if a query's rewritten form is independent of the index being searched
+     * @param query the query
+     * @return true if the query can be rewritten ahead of time
+     */
+    public static boolean isReaderIndependent(Query query) {
+        Class<?> type = query.getClass();
+        if (type == TermQuery.class || type == PhraseQuery.class || type == MultiPhraseQuery.class
+                || type == MatchAllDocsQuery.class || type == SpanTermQuery.class)
+            return true;
+        if (type == BooleanQuery.class) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                if (!isReaderIndependent(clause.getQuery()))
+                    return false;
+            }
+            return true;
+        }
+        if (type == DisjunctionMaxQuery.class) {
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                if (!isReaderIndependent(disjunct))
+                    return false;
+            }
+            return true;
+        }
+        if (type == ConstantScoreQuery.class) {
+            Query inner = ((ConstantScoreQuery) query).getQuery();
+            return inner == null || isReaderIndependent(inner);
+        }
+        if (type == FilteredQuery.class)
+            return isReaderIndependent(((FilteredQuery) query).getQuery());
+        if (type == SpanNearQuery.class)
+            return allReaderIndependent(((SpanNearQuery) query).getClauses());
+        if (type == SpanOrQuery.class)
+            return allReaderIndependent(((SpanOrQuery) query).getClauses());
+        if (type == SpanNotQuery.class)
+            return isReaderIndependent(((SpanNotQuery) query).getInclude())
+                    && isReaderIndependent(((SpanNotQuery) query).getExclude());
+        if (type == SpanFirstQuery.class)
+            return isReaderIndependent(((SpanFirstQuery) query).getMatch());
+        return false;
+    }
+
+    /**
+     * Replace any fuzzy queries within a query with {@link CompiledAutomatonQuery}s,
+     * so that their automata are built once rather than for every document.
+     *
+     * Compiled fuzzy queries do not apply FuzzyQuery's per-term similarity boosts, so
+     * scoring matchers may report different scores for them.
+     * @param query the query
+     * @return the query with its automata compiled, or the original query if it contains
+     *          no automata that can be compiled
+     */
+    public static Query compileAutomata(Query query) {
+        Class<?> type = query.getClass();
+        if (type == FuzzyQuery.class) {
+            Query compiled = CompiledAutomatonQuery.compile((MultiTermQuery) query);
+            return compiled == null ? query : compiled;
+        }
+        if (type == BooleanQuery.class) {
+            BooleanQuery bq = (BooleanQuery) query;
+            BooleanQuery compiled = new BooleanQuery(bq.isCoordDisabled());
+            compiled.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+            compiled.setBoost(bq.getBoost());
+            boolean changed = false;
+            for (BooleanClause clause : bq.getClauses()) {
+                Query clauseQuery = compileAutomata(clause.getQuery());
+                changed |= clauseQuery != clause.getQuery();
+                compiled.add(clauseQuery, clause.getOccur());
+            }
+            return changed ? compiled : query;
+        }
+        if (type == DisjunctionMaxQuery.class) {
+            DisjunctionMaxQuery dmq = (DisjunctionMaxQuery) query;
+            DisjunctionMaxQuery compiled = new DisjunctionMaxQuery(dmq.getTieBreakerMultiplier());
+            compiled.setBoost(dmq.getBoost());
+            boolean changed = false;
+            for (Query disjunct : dmq.getDisjuncts()) {
+                Query compiledDisjunct = compileAutomata(disjunct);
+                changed |= compiledDisjunct != disjunct;
+                compiled.add(compiledDisjunct);
+            }
+            return changed ? compiled : query;
+        }
+        if (type == ConstantScoreQuery.class && ((ConstantScoreQuery) query).getQuery() != null) {
+            Query inner = ((ConstantScoreQuery) query).getQuery();
+            Query compiledInner = compileAutomata(inner);
+            if (compiledInner == inner)
+                return query;
+            ConstantScoreQuery compiled = new ConstantScoreQuery(compiledInner);
+            compiled.setBoost(query.getBoost());
+            return compiled;
+        }
+        return query;
+    }
+
+    /**
+     * Calculate the approximate memory used by the compiled automata within a query
+     * @param query the query
+     * @return the approximate memory used by the query's {@link CompiledAutomatonQuery}s
+     */
+    public static long automatonRamBytesUsed(Query query) {
+        if (query instanceof CompiledAutomatonQuery)
+            return ((CompiledAutomatonQuery) query).ramBytesUsed();
+        long size = 0;
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                size += automatonRamBytesUsed(clause.getQuery());
+            }
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                size += automatonRamBytesUsed(disjunct);
+            }
+        }
+        if (query instanceof ConstantScoreQuery && ((ConstantScoreQuery) query).getQuery() != null)
+            size += automatonRamBytesUsed(((ConstantScoreQuery) query).getQuery());
+        return size;
+    }
+
+    private static boolean allReaderIndependent(SpanQuery[] queries) {
+        for (SpanQuery query : queries) {
+            if (!isReaderIndependent(query))
+                return false;
+        }
+        return true;
+    }
+
+}
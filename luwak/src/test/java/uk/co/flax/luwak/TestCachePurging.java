@@ -17,12 +17,18 @@ package uk.co.flax.luwak;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Query;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -71,6 +77,29 @@ public class TestCachePurging {
         assertThat(result.getMatchCount()).isEqualTo(2);
     }
 
+    @Test
+    public void testPurgeEvictionsAreReported() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "test1 test4"), new MonitorQuery("2", "test2"));
+        monitor.update(new MonitorQuery("2", "test3"));
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(4);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(1);
+
+        monitor.deleteById("1");
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(3);
+
+        monitor.purgeCache();
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(1);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(0);
+        assertThat(monitor.getStats().lastPurgeEvictions).isEqualTo(3);
+
+        monitor.clear();
+        monitor.purgeCache();
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(0);
+        assertThat(monitor.getStats().lastPurgeEvictions).isEqualTo(1);
+    }
+
     @Test
     public void testConcurrentPurges() throws Exception {
         int iters = Integer.getInteger("purgeIters", 2);
@@ -140,6 +169,126 @@ public class TestCachePurging {
         return new MonitorQuery(Integer.toString(id), "+test " + Integer.toString(id));
     }
 
+    @Test
+    public void testQueriesAreNotEvictedWhileSearchesCanSeeThem() throws IOException {
+
+        final Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+
+        // delete and purge the other query while the first is being matched, so that the
+        // search selecting them still uses a view of the queryindex that includes it
+        MatcherFactory<QueryMatch> factory = new MatcherFactory<QueryMatch>() {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(InputDocument doc) {
+                return new SimpleMatcher(doc) {
+
+                    boolean deleted = false;
+
+                    @Override
+                    public QueryMatch matchQuery(String queryId, Query matchQuery, Query highlightQuery)
+                            throws IOException {
+                        if (!deleted) {
+                            deleted = true;
+                            monitor.deleteById("1".equals(queryId) ? "2" : "1");
+                            monitor.purgeCache();
+                        }
+                        return super.matchQuery(queryId, matchQuery, highlightQuery);
+                    }
+                };
+            }
+        };
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("field", "test", new WhitespaceAnalyzer()).build();
+
+        Matches<QueryMatch> matches = monitor.match(doc, factory);
+        assertThat(matches.getErrors()).isEmpty();
+        assertThat(matches.getMatchCount()).isEqualTo(2);
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(2);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(1);
+
+        monitor.purgeCache();
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(1);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(0);
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testConcurrentReplacementsOfTheSameQueryDoNotLeakSlots() throws Exception {
+
+        final Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 200; i++) {
+                            monitor.update(newMonitorQuery(1));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        monitor.purgeCache();
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(1);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(0);
+        monitor.close();
+    }
+
+    @Test
+    public void testSlotsOfPartiallyIndexedQueriesAreEvicted() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher()) {
+            @Override
+            protected Document buildIndexableQuery(String id, MonitorQuery mq, CacheEntry query, int slot) {
+                if (query.matchQuery.toString().contains("fail"))
+                    throw new IllegalStateException("cannot index " + query.matchQuery);
+                return super.buildIndexableQuery(id, mq, query, slot);
+            }
+        };
+
+        // the first disjunct is indexed before the second one fails
+        List<QueryError> errors = monitor.update(new MonitorQuery("1", "test fail"));
+        assertThat(errors).hasSize(1);
+        assertThat(monitor.getQueryCount()).isEqualTo(0);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(2);
+
+        monitor.purgeCache();
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(0);
+        assertThat(monitor.getStats().pendingEvictions).isEqualTo(0);
+        monitor.close();
+    }
+
+    @Test
+    public void testPurgedSlotsAreReused() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        long initialRamBytesUsed = monitor.getStats().cacheRamBytesUsed;
+
+        // replace the same query more times than the cache's initial capacity
+        for (int i = 0; i < 1500; i++) {
+            monitor.update(newMonitorQuery(1));
+            monitor.purgeCache();
+        }
+
+        assertThat(monitor.getStats().cachedQueries).isEqualTo(1);
+        assertThat(monitor.getStats().cacheRamBytesUsed).isEqualTo(initialRamBytesUsed);
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("field", "test 1", new WhitespaceAnalyzer()).build();
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount()).isEqualTo(1);
+    }
+
     @Test
     public void testBackgroundPurges() throws IOException, InterruptedException {
 
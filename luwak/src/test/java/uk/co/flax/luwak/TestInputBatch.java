@@ -0,0 +1,118 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ExplainingMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestInputBatch {
+
+    static final Analyzer WHITESPACE = new WhitespaceAnalyzer();
+
+    @Test
+    public void testBatchMatchesAreReportedPerDocument() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f", WHITESPACE), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "hello"),
+                           new MonitorQuery("2", "\"hello world\""),
+                           new MonitorQuery("3", "goodbye"),
+                           new MonitorQuery("4", "unmatched"));
+
+            Map<String, Matches<QueryMatch>> matches;
+            try (InputBatch batch = InputBatch.builder("batch")
+                    .addDocument("doc1").addField("f", "hello world", WHITESPACE)
+                    .addDocument("doc2").addField("f", "world hello", WHITESPACE)
+                    .addDocument("doc3").addField("f", "goodbye", WHITESPACE).addField("g", "hello", WHITESPACE)
+                    .build()) {
+                assertThat(batch.size()).isEqualTo(3);
+                matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            }
+            assertThat(matches.keySet()).containsExactly("doc1", "doc2", "doc3");
+
+            Matches<QueryMatch> doc1 = matches.get("doc1");
+            assertThat(doc1.docId()).isEqualTo("doc1");
+            assertThat(doc1.getMatchCount()).isEqualTo(2);
+            assertThat(doc1.matches("1")).isNotNull();
+            assertThat(doc1.matches("2")).isNotNull();
+
+            Matches<QueryMatch> doc2 = matches.get("doc2");
+            assertThat(doc2.getMatchCount()).isEqualTo(1);
+            assertThat(doc2.matches("1")).isNotNull();
+
+            Matches<QueryMatch> doc3 = matches.get("doc3");
+            assertThat(doc3.getMatchCount()).isEqualTo(1);
+            assertThat(doc3.matches("3")).isNotNull();
+
+            // candidates are selected once for the whole batch
+            assertThat(doc1.getQueriesRun()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void testDocumentsWithNoMatchesAreReported() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f", WHITESPACE), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "hello"));
+
+            try (InputBatch batch = InputBatch.builder("batch")
+                    .addDocument("doc1").addField("f", "hello", WHITESPACE)
+                    .addDocument("doc2").addField("f", "goodbye", WHITESPACE)
+                    .build()) {
+                Map<String, Matches<QueryMatch>> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.get("doc1").getMatchCount()).isEqualTo(1);
+                assertThat(matches.get("doc2").getMatchCount()).isEqualTo(0);
+            }
+        }
+    }
+
+    @Test
+    public void testClosingABatchReleasesItsIndex() throws IOException {
+        InputBatch batch = InputBatch.builder("batch").addDocument("doc1").addField("f", "hello", WHITESPACE).build();
+        assertThat(batch.asAtomicReader().getRefCount()).isEqualTo(1);
+        batch.close();
+        assertThat(batch.asAtomicReader().getRefCount()).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateDocumentIdsAreRejected() {
+        InputBatch.builder("batch").addDocument("doc1").addDocument("doc1");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFieldsMustBeAddedToADocument() {
+        InputBatch.builder("batch").addField("f", "hello", WHITESPACE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMatchersMustSupportBatches() throws IOException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f", WHITESPACE), new TermFilteredPresearcher());
+             InputBatch batch = InputBatch.builder("batch").addDocument("doc1").addField("f", "hello", WHITESPACE).build()) {
+            monitor.match(batch, ExplainingMatcher.FACTORY);
+        }
+    }
+
+}
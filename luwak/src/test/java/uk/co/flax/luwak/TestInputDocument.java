@@ -0,0 +1,73 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestInputDocument {
+
+    static final Analyzer WHITESPACE = new WhitespaceAnalyzer();
+
+    @Test
+    public void testReusableDocumentsAreReset() throws IOException {
+
+        InputDocument doc1 = InputDocument.reusableBuilder("doc1")
+                .addField("f", "hello world", WHITESPACE)
+                .build();
+        assertThat(doc1.getId()).isEqualTo("doc1");
+        assertThat(doc1.asAtomicReader().docFreq(new Term("f", "hello"))).isEqualTo(1);
+
+        InputDocument doc2 = InputDocument.reusableBuilder("doc2")
+                .addField("g", "goodbye", WHITESPACE)
+                .build();
+        assertThat(doc2).isSameAs(doc1);
+        assertThat(doc2.getId()).isEqualTo("doc2");
+        assertThat(doc2.asAtomicReader().docFreq(new Term("f", "hello"))).isEqualTo(0);
+        assertThat(doc2.asAtomicReader().docFreq(new Term("g", "goodbye"))).isEqualTo(1);
+    }
+
+    @Test
+    public void testReusedDocumentsCanBeMatched() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f", WHITESPACE), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "hello"), new MonitorQuery("2", "goodbye"));
+
+            InputDocument doc = InputDocument.builder("doc1").addField("f", "hello world", WHITESPACE).build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount()).isEqualTo(1);
+            assertThat(matches.matches("1")).isNotNull();
+
+            InputDocument reused = InputDocument.builder("doc2", doc).addField("f", "goodbye world", WHITESPACE).build();
+            assertThat(reused).isSameAs(doc);
+            matches = monitor.match(reused, SimpleMatcher.FACTORY);
+            assertThat(matches.docId()).isEqualTo("doc2");
+            assertThat(matches.getMatchCount()).isEqualTo(1);
+            assertThat(matches.matches("2")).isNotNull();
+        }
+    }
+
+}
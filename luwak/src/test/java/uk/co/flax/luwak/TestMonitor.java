@@ -3,6 +3,11 @@ package uk.co.flax.luwak;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
@@ -146,6 +151,35 @@ public class TestMonitor {
         Assertions.assertThat(matches.getQueriesRun()).isEqualTo(0);
     }
 
+    @Test
+    public void canMatchABatchOfDocuments() throws IOException {
+
+        monitor.update(new MonitorQuery("query1", "this"), new MonitorQuery("query2", "that"));
+
+        Map<String, Matches<QueryMatch>> matches;
+        try (InputBatch batch = InputBatch.builder("batch")
+                .addDocument("doc1").addField(TEXTFIELD, "this", WHITESPACE)
+                .addDocument("doc2").addField(TEXTFIELD, "that", WHITESPACE)
+                .addDocument("doc3").addField(TEXTFIELD, "other", WHITESPACE)
+                .build()) {
+            matches = monitor.match(batch, SimpleMatcher.FACTORY);
+        }
+        Assertions.assertThat(matches).hasSize(3);
+
+        assertThat(matches.get("doc1"))
+                .matches("doc1")
+                .hasMatchCount(1)
+                .matchesQuery("query1");
+        assertThat(matches.get("doc2"))
+                .matches("doc2")
+                .hasMatchCount(1)
+                .matchesQuery("query2");
+        assertThat(matches.get("doc3"))
+                .matches("doc3")
+                .hasMatchCount(0)
+                .hasQueriesRunCount(2);
+    }
+
     @Test
     public void testUpdateReporting() throws IOException {
 
@@ -162,6 +196,90 @@ public class TestMonitor {
 
     }
 
+    @Test
+    public void testParallelUpdates() throws IOException {
+
+        Monitor.UpdateReporter reporter = mock(Monitor.UpdateReporter.class);
+        List<MonitorQuery> queries = new ArrayList<>(10400);
+        for (int i = 0; i < 10355; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test"));
+        }
+        queries.add(new MonitorQuery("bad", "+"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<QueryError> errors = monitor.update(queries, reporter, executor);
+            Assertions.assertThat(errors).hasSize(1);
+            Assertions.assertThat(errors.get(0).query).isEqualTo("+");
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        verify(reporter).progress(5000, 5000);
+        verify(reporter).progress(10000, 5000);
+        verify(reporter).finish(10356, 355);
+        Assertions.assertThat(monitor.getQueryCount()).isEqualTo(10355);
+
+        InputDocument doc = InputDocument.builder("doc1").addField(TEXTFIELD, "test", WHITESPACE).build();
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY)).hasMatchCount(10355);
+    }
+
+    @Test
+    public void testAsyncMatching() throws Exception {
+
+        monitor.update(new MonitorQuery("query1", "this"), new MonitorQuery("query2", "that"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Matches<QueryMatch>>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                InputDocument doc = InputDocument.builder("doc" + i)
+                        .addField(TEXTFIELD, i % 2 == 0 ? "this" : "that", WHITESPACE).build();
+                futures.add(monitor.matchAsync(doc, SimpleMatcher.FACTORY, executor));
+            }
+            for (int i = 0; i < 50; i++) {
+                assertThat(futures.get(i).get())
+                        .matches("doc" + i)
+                        .hasMatchCount(1)
+                        .hasQueriesRunCount(2)
+                        .matchesQuery(i % 2 == 0 ? "query1" : "query2");
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelledAsyncMatchesReleaseTheirPermits() throws Exception {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher()) {
+            @Override
+            protected int configureMaxInFlightMatches() {
+                return 1;
+            }
+        };
+
+        // an executor that never runs its tasks, so matches can only finish by being cancelled
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+
+        for (int i = 0; i < 5; i++) {
+            InputDocument doc = InputDocument.builder("doc" + i).addField(TEXTFIELD, "this", WHITESPACE).build();
+            Future<Matches<QueryMatch>> future = monitor.matchAsync(doc, SimpleMatcher.FACTORY, executor);
+            Assertions.assertThat(future.cancel(false)).isTrue();
+        }
+        Assertions.assertThat(queued).hasSize(5);
+
+        monitor.close();
+    }
+
     static final Analyzer WHITESPACE = new WhitespaceAnalyzer();
 
 }
@@ -3,9 +3,17 @@ package uk.co.flax.luwak;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ImmutableMap;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.MMapDirectory;
 import org.assertj.core.api.Assertions;
 import org.junit.After;
@@ -16,6 +24,8 @@ import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 import uk.co.flax.luwak.util.FileUtils;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static uk.co.flax.luwak.util.MatchesAssert.assertThat;
 
 /**
@@ -68,6 +78,187 @@ public class TestMonitorPersistence {
 
     }
 
+    @Test
+    public void testQueriesAddedAfterRestartDoNotOverwriteCachedQueries() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory));
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "foo bar"));
+        monitor.close();
+
+        Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory));
+        Assertions.assertThat(monitor2.getStats().cachedQueries).isEqualTo(3);
+
+        monitor2.update(new MonitorQuery("3", "test"));
+        Assertions.assertThat(monitor2.getStats().cachedQueries).isEqualTo(4);
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test foo", new WhitespaceAnalyzer()).build();
+        assertThat(monitor2.match(doc, SimpleMatcher.FACTORY))
+                .hasMatchCount(3)
+                .matchesQuery("1")
+                .matchesQuery("2")
+                .matchesQuery("3");
+
+        monitor2.close();
+    }
+
+    @Test
+    public void testCacheCanBeLoadedInTheBackground() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory));
+        for (int i = 0; i < 100; i++) {
+            monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+        }
+        monitor.close();
+
+        final Monitor.UpdateReporter reporter = mock(Monitor.UpdateReporter.class);
+        Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory)) {
+            @Override
+            protected boolean configureBackgroundLoad() {
+                return true;
+            }
+
+            @Override
+            protected int configureLoadThreads() {
+                return 4;
+            }
+
+            @Override
+            protected UpdateReporter configureLoadReporter() {
+                return reporter;
+            }
+        };
+
+        // queries that haven't been loaded yet are parsed on demand
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new KeywordAnalyzer()).build();
+        assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount(100);
+
+        monitor2.waitForCacheLoad();
+        Assertions.assertThat(monitor2.isCacheLoaded()).isTrue();
+        Assertions.assertThat(monitor2.getStats().cachedQueries).isEqualTo(100);
+        verify(reporter).finish(100, 0);
+
+        monitor2.close();
+    }
+
+    @Test
+    public void testCacheIsRepopulatedFromQuerySnapshots() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory)) {
+            @Override
+            protected QuerySerializer configureQuerySerializer() {
+                return new SimpleQuerySerializer();
+            }
+
+            @Override
+            protected String configureSnapshotVersion() {
+                return "v1";
+            }
+        };
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "\"test phrase\"~2 other", "hl"));
+        monitor.close();
+
+        // a parser that always fails, so the cache can only be repopulated from the snapshots
+        MonitorQueryParser failingParser = new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                throw new UnsupportedOperationException("Queries should not be reparsed");
+            }
+        };
+
+        Monitor monitor2 = new Monitor(failingParser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory)) {
+            @Override
+            protected QuerySerializer configureQuerySerializer() {
+                return new SimpleQuerySerializer();
+            }
+
+            @Override
+            protected String configureSnapshotVersion() {
+                return "v1";
+            }
+        };
+        Assertions.assertThat(monitor2.getStats().cachedQueries).isEqualTo(3);
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("f", "test phrase other", new WhitespaceAnalyzer()).build();
+        assertThat(monitor2.match(doc, SimpleMatcher.FACTORY))
+                .hasMatchCount(2)
+                .matchesQuery("1")
+                .matchesQuery("2");
+
+        monitor2.close();
+    }
+
+    @Test
+    public void testQueriesAreReparsedWhenTheSnapshotVersionChanges() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                        new MMapDirectory(indexDirectory)) {
+            @Override
+            protected QuerySerializer configureQuerySerializer() {
+                return new SimpleQuerySerializer();
+            }
+
+            @Override
+            protected String configureSnapshotVersion() {
+                return "v1";
+            }
+        };
+        monitor.update(new MonitorQuery("1", "test"));
+        monitor.close();
+
+        // a new version, for example after a change to the parser's configuration
+        final AtomicInteger parsed = new AtomicInteger();
+        MonitorQueryParser countingParser = new MonitorQueryParser() {
+            final LuceneQueryParser parser = new LuceneQueryParser("f");
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                parsed.incrementAndGet();
+                return parser.parse(queryString, metadata);
+            }
+        };
+
+        Monitor monitor2 = new Monitor(countingParser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory)) {
+            @Override
+            protected QuerySerializer configureQuerySerializer() {
+                return new SimpleQuerySerializer();
+            }
+
+            @Override
+            protected String configureSnapshotVersion() {
+                return "v2";
+            }
+        };
+        Assertions.assertThat(monitor2.getStats().cachedQueries).isEqualTo(1);
+        Assertions.assertThat(parsed.get()).isEqualTo(1);
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new KeywordAnalyzer()).build();
+        assertThat(monitor2.match(doc, SimpleMatcher.FACTORY))
+                .hasMatchCount(1)
+                .matchesQuery("1");
+
+        monitor2.close();
+    }
+
+    @Test
+    public void testSubclassedQueriesAreNotSnapshotted() {
+
+        QuerySerializer serializer = new SimpleQuerySerializer();
+        Query term = new TermQuery(new Term("f", "test"));
+        Query subclassed = new TermQuery(new Term("f", "test")) {};
+
+        Assertions.assertThat(serializer.serialize(term)).isNotNull();
+        Assertions.assertThat(serializer.serialize(subclassed)).isNull();
+
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(subclassed, BooleanClause.Occur.SHOULD);
+        Assertions.assertThat(serializer.serialize(bq)).isNull();
+    }
+
     @After
     public void teardown() throws IOException {
         FileUtils.deleteDirectory(indexDirectory);
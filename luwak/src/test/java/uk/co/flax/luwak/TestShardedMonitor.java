@@ -0,0 +1,194 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static uk.co.flax.luwak.util.MatchesAssert.assertThat;
+
+/*
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestShardedMonitor {
+
+    static final String TEXTFIELD = "TEXTFIELD";
+
+    static final Analyzer WHITESPACE = new WhitespaceAnalyzer();
+
+    private ShardedMonitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new ShardedMonitor(new LuceneQueryParser(TEXTFIELD), new TermFilteredPresearcher(), 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    @Test
+    public void testMatchesAreCombinedAcrossShards() throws IOException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test" + (i % 2)));
+        }
+        Assertions.assertThat(monitor.update(queries)).isEmpty();
+        Assertions.assertThat(monitor.getQueryCount()).isEqualTo(100);
+
+        InputDocument doc = InputDocument.builder("doc1").addField(TEXTFIELD, "test0 other", WHITESPACE).build();
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY))
+                .matches("doc1")
+                .hasMatchCount(50)
+                .hasQueriesRunCount(50)
+                .matchesQuery("0")
+                .matchesQuery("98");
+    }
+
+    @Test
+    public void testUpdatesAndDeletesAreRoutedToTheCorrectShard() throws IOException {
+
+        monitor.update(new MonitorQuery("query1", "this"), new MonitorQuery("query2", "that"));
+        monitor.update(new MonitorQuery("query1", "that"));
+        Assertions.assertThat(monitor.getQueryCount()).isEqualTo(2);
+        Assertions.assertThat(monitor.getQuery("query1")).isEqualTo(new MonitorQuery("query1", "that"));
+
+        monitor.deleteById("query2");
+        Assertions.assertThat(monitor.getQueryCount()).isEqualTo(1);
+
+        InputDocument doc = InputDocument.builder("doc1").addField(TEXTFIELD, "this that", WHITESPACE).build();
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY))
+                .hasMatchCount(1)
+                .matchesQuery("query1");
+    }
+
+    @Test
+    public void testBatchMatching() throws IOException {
+
+        monitor.update(new MonitorQuery("query1", "this"), new MonitorQuery("query2", "that"));
+
+        Map<String, Matches<QueryMatch>> matches;
+        try (InputBatch batch = InputBatch.builder("batch")
+                .addDocument("doc1").addField(TEXTFIELD, "this", WHITESPACE)
+                .addDocument("doc2").addField(TEXTFIELD, "this that", WHITESPACE)
+                .build()) {
+            matches = monitor.match(batch, SimpleMatcher.FACTORY);
+        }
+        Assertions.assertThat(matches.keySet()).containsExactly("doc1", "doc2");
+        assertThat(matches.get("doc1")).matches("doc1").hasMatchCount(1).matchesQuery("query1");
+        assertThat(matches.get("doc2")).matches("doc2").hasMatchCount(2);
+    }
+
+    @Test(timeout = 10000)
+    public void testMatchingWithAParallelMatcherDoesNotDeadlock() throws Exception {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test"));
+        }
+        monitor.update(queries);
+
+        // the pool only has room for one ParallelMatcher's workers at a time
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            InputDocument doc = InputDocument.builder("doc1").addField(TEXTFIELD, "test", WHITESPACE).build();
+            assertThat(monitor.match(doc, ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, 2)))
+                    .hasMatchCount(100);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDebugIsCombinedAcrossShards() throws IOException {
+
+        monitor.update(new MonitorQuery("query1", "this"), new MonitorQuery("query2", "that"),
+                       new MonitorQuery("query3", "other"));
+
+        InputDocument doc = InputDocument.builder("doc1").addField(TEXTFIELD, "this that", WHITESPACE).build();
+        PresearcherMatches<QueryMatch> matches = monitor.debug(doc, SimpleMatcher.FACTORY);
+
+        Assertions.assertThat(matches.match("query1").presearcherMatches).contains("this");
+        Assertions.assertThat(matches.match("query2").presearcherMatches).contains("that");
+        Assertions.assertThat(matches.match("query3")).isNull();
+        assertThat(matches.matcher).hasMatchCount(2);
+    }
+
+    @Test
+    public void testStatsAndPurgingCoverAllShards() throws IOException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test"));
+        }
+        monitor.update(queries);
+        Assertions.assertThat(monitor.getStats().cachedQueries).isEqualTo(20);
+
+        monitor.deleteById("1", "2", "3");
+        Assertions.assertThat(monitor.getStats().queries).isEqualTo(17);
+        Assertions.assertThat(monitor.getStats().pendingEvictions).isGreaterThan(0);
+
+        monitor.purgeCache();
+        Monitor.CacheStats stats = monitor.getStats();
+        Assertions.assertThat(stats.cachedQueries).isEqualTo(17);
+        Assertions.assertThat(stats.pendingEvictions).isEqualTo(0);
+        Assertions.assertThat(stats.lastPurgeEvictions).isEqualTo(3);
+    }
+
+    @Test
+    public void testUpdateProgressIsReportedAcrossShards() throws IOException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test"));
+        }
+
+        final int[] finished = new int[2];
+        monitor.update(queries, new Monitor.UpdateReporter() {
+            @Override
+            public void progress(int total, int batchsize) {
+
+            }
+
+            @Override
+            public void finish(int total, int finalbatchsize) {
+                finished[0]++;
+                finished[1] = total;
+            }
+        });
+
+        Assertions.assertThat(finished[0]).isEqualTo(1);
+        Assertions.assertThat(finished[1]).isEqualTo(20);
+    }
+
+}
@@ -1,6 +1,9 @@
 package uk.co.flax.luwak;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.search.IndexSearcher;
@@ -68,13 +71,13 @@ public class TestSlowLog {
 
         Matches<QueryMatch> matches = monitor.match(doc1, SimpleMatcher.FACTORY);
         System.out.println(matches.getSlowLog());
-        assertThat(matches.getSlowLog())
+        assertThat(matches.getSlowLog().toString())
                 .contains("1:")
                 .contains("3:")
                 .doesNotContain("2:");
 
         monitor.setSlowLogLimit(1);
-        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY).getSlowLog())
+        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY).getSlowLog().toString())
                 .contains("1:")
                 .contains("2:")
                 .contains("3:");
@@ -85,5 +88,62 @@ public class TestSlowLog {
 
     }
 
+    @Test
+    public void testSlowLogEntries() throws IOException {
+
+        Monitor monitor = new Monitor(new SlowQueryParser(250), new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+        InputDocument doc1 = InputDocument.builder("doc1").build();
+
+        SlowLog slowlog = monitor.match(doc1, SimpleMatcher.FACTORY).getSlowLog();
+        assertThat(slowlog.size()).isEqualTo(1);
+        SlowLog.Entry entry = slowlog.iterator().next();
+        assertThat(entry.queryId).isEqualTo("1");
+        assertThat(entry.time).isGreaterThanOrEqualTo(250000000L);
+
+    }
+
+    @Test
+    public void testSlowLogKeepsSlowestEntries() {
+
+        SlowLog slowlog = new SlowLog(2);
+        slowlog.addQuery("1", 10);
+        slowlog.addQuery("2", 30);
+        slowlog.addQuery("3", 20);
+        slowlog.addQuery("4", 5);
+
+        SlowLog other = new SlowLog();
+        other.addQuery("5", 40);
+        slowlog.addAll(other);
+
+        List<String> ids = new ArrayList<>();
+        for (SlowLog.Entry entry : slowlog) {
+            ids.add(entry.queryId);
+        }
+        assertThat(ids).containsOnly("2", "5");
+
+    }
+
+    @Test
+    public void testMatchesHoldTheirOwnSlowLog() {
+
+        SlowLog slowlog = new SlowLog();
+        slowlog.addQuery("1", 10);
+
+        Matches<QueryMatch> doc1 = new Matches<>("doc1", Collections.<String, QueryMatch>emptyMap(),
+                Collections.<MatchError>emptyList(), 0, 0, 1, slowlog);
+        Matches<QueryMatch> doc2 = new Matches<>("doc2", Collections.<String, QueryMatch>emptyMap(),
+                Collections.<MatchError>emptyList(), 0, 0, 1, slowlog);
+
+        slowlog.addQuery("2", 20);
+        doc1.getSlowLog().addQuery("3", 30);
+
+        assertThat(doc1.getSlowLog().size()).isEqualTo(2);
+        assertThat(doc2.getSlowLog().size()).isEqualTo(1);
+        assertThat(doc2.getSlowLog().iterator().next().queryId).isEqualTo("1");
+
+    }
+
 
 }
@@ -1,10 +1,14 @@
 package uk.co.flax.luwak;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.junit.Test;
 import uk.co.flax.luwak.matchers.SimpleMatcher;
 import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
@@ -49,4 +53,41 @@ public class TestTermsEnumFilter {
 
     }
 
+    @Test
+    public void testTermFilterIsRefreshedOnUpdate() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "text:hello"));
+
+        InputDocument doc = InputDocument.builder("doc")
+                .addField("text", "hello world", ANALYZER)
+                .build();
+
+        assertThat(termClauses(monitor.buildQuery(doc))).hasSize(1);     // text:hello
+
+        monitor.update(new MonitorQuery("2", "text:world"));
+        assertThat(termClauses(monitor.buildQuery(doc))).hasSize(2);     // text:hello text:world
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount()).isEqualTo(2);
+
+    }
+
+    @Test(expected = AlreadyClosedException.class)
+    public void testMatchingAfterCloseFails() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "text:hello"));
+        monitor.close();
+
+        InputDocument doc = InputDocument.builder("doc")
+                .addField("text", "hello world", ANALYZER)
+                .build();
+        monitor.match(doc, SimpleMatcher.FACTORY);
+
+    }
+
+    private static List<BooleanClause> termClauses(Query presearcherQuery) {
+        BooleanQuery bq = (BooleanQuery) presearcherQuery;
+        return ((BooleanQuery) bq.clauses().get(0).getQuery()).clauses();
+    }
+
 }
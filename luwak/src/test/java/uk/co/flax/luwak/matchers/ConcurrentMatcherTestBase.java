@@ -107,13 +107,13 @@ public abstract class ConcurrentMatcherTestBase {
         assertThat(matches.getMatchCount())
                 .isEqualTo(3);
         System.out.println(matches.getSlowLog());
-        assertThat(matches.getSlowLog())
+        assertThat(matches.getSlowLog().toString())
                 .contains("1:")
                 .contains("3:")
                 .doesNotContain("2:");
 
         monitor.setSlowLogLimit(1);
-        assertThat(monitor.match(doc1, factory).getSlowLog())
+        assertThat(monitor.match(doc1, factory).getSlowLog().toString())
                 .contains("1:")
                 .contains("2:")
                 .contains("3:");
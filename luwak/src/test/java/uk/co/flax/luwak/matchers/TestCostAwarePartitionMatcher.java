@@ -0,0 +1,122 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestCostAwarePartitionMatcher extends ConcurrentMatcherTestBase {
+
+    @Override
+    protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
+        return PartitionMatcher.factory(executor, factory, threads, new QueryCostModel());
+    }
+
+    @Test
+    public void testQueryCostsAreRecorded() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueryCostModel costModel = new QueryCostModel();
+
+        Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(100), new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"), new MonitorQuery("3", "fast"));
+
+        InputDocument doc = InputDocument.builder("doc1").build();
+        MatcherFactory<QueryMatch> factory = PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 2, costModel);
+
+        assertThat(monitor.match(doc, factory).getMatchCount()).isEqualTo(3);
+        assertThat(costModel.size()).isEqualTo(3);
+        assertThat(costModel.getCost("1", 0)).isGreaterThan(costModel.getCost("2", 0));
+
+        // once costs are known, partitions are balanced by cost
+        assertThat(monitor.match(doc, factory).getMatchCount()).isEqualTo(3);
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDisjunctCostsAreRecordedSeparately() {
+
+        QueryCostModel costModel = new QueryCostModel();
+        Query cheap = new TermQuery(new Term("f", "cheap"));
+        Query expensive = new TermQuery(new Term("f", "expensive"));
+
+        costModel.record("1", cheap, 10);
+        costModel.record("1", expensive, 1000);
+
+        assertThat(costModel.size()).isEqualTo(2);
+        assertThat(costModel.getCost("1", cheap, 0)).isEqualTo(10);
+        assertThat(costModel.getCost("1", expensive, 0)).isEqualTo(1000);
+        assertThat(costModel.getCost("1", 0)).isEqualTo(1010);
+
+        costModel.remove("1");
+        assertThat(costModel.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCostModelIsBounded() {
+
+        QueryCostModel costModel = new QueryCostModel(QueryCostModel.DEFAULT_DECAY, 10);
+        Query query = new TermQuery(new Term("f", "term"));
+        for (int i = 0; i < 100; i++) {
+            costModel.record(Integer.toString(i), query, 10);
+        }
+        assertThat(costModel.size()).isEqualTo(10);
+        assertThat(costModel.getCost("99", query, 0)).isEqualTo(10);
+    }
+
+    @Test
+    public void testCostsAreForgottenWhenQueriesChange() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueryCostModel costModel = new QueryCostModel();
+        MatcherFactory<QueryMatch> factory = PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 2, costModel);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.addQueryListener(costModel);
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"), new MonitorQuery("3", "test"));
+
+            InputDocument doc = InputDocument.builder("doc1").build();
+            monitor.match(doc, factory);
+            assertThat(costModel.size()).isEqualTo(3);
+
+            monitor.deleteById("1");
+            assertThat(costModel.size()).isEqualTo(2);
+
+            monitor.update(new MonitorQuery("2", "other"));
+            assertThat(costModel.size()).isEqualTo(1);
+
+            monitor.clear();
+            assertThat(costModel.size()).isEqualTo(0);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package uk.co.flax.luwak.metrics;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        int previous = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertThat(bucket).isBetween(previous, previous + 1);
+            assertThat(LatencyHistogram.highestValue(bucket)).isGreaterThanOrEqualTo(micros);
+            previous = bucket;
+        }
+        assertThat(LatencyHistogram.bucket(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKET_COUNT - 1);
+    }
+
+    @Test
+    public void testCoarseBucketsCoverAllValues() {
+        for (int bits = 0; bits <= LatencyHistogram.DEFAULT_SUB_BUCKET_BITS; bits++) {
+            int previous = -1;
+            for (long micros = 0; micros < 100000; micros++) {
+                int bucket = LatencyHistogram.bucket(micros, bits);
+                assertThat(bucket).isBetween(previous, previous + 1);
+                assertThat(LatencyHistogram.highestValue(bucket, bits)).isGreaterThanOrEqualTo(micros);
+                previous = bucket;
+            }
+            assertThat(LatencyHistogram.bucket(Long.MAX_VALUE, bits)).isEqualTo(LatencyHistogram.bucketCount(bits) - 1);
+        }
+    }
+
+    @Test
+    public void testCoarsePercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram(0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        // values are reported within a factor of two
+        assertThat(histogram.getPercentile(50)).isBetween(50000000L, 100000000L);
+        assertThat(histogram.getPercentile(100)).isEqualTo(100000000L);
+    }
+
+    @Test
+    public void testPercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(99)).isEqualTo(0);
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMax()).isEqualTo(100000000L);
+        assertThat(histogram.getMean()).isEqualTo(50500000.0);
+        assertThat(histogram.getPercentile(50)).isBetween(50000000L, 56250000L);
+        assertThat(histogram.getPercentile(99)).isBetween(99000000L, 100000000L);
+        assertThat(histogram.getPercentile(100)).isEqualTo(100000000L);
+
+        histogram.reset();
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getPercentile(50)).isEqualTo(0);
+    }
+
+}
@@ -0,0 +1,169 @@
+package uk.co.flax.luwak.metrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestRecordingMonitorMetrics {
+
+    @Test
+    public void testQueryAndDocumentMetricsAreRecorded() throws IOException {
+
+        final RecordingMonitorMetrics metrics = new RecordingMonitorMetrics();
+        Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(20), new MatchAllPresearcher()) {
+            @Override
+            protected MonitorMetrics configureMetrics() {
+                return metrics;
+            }
+        };
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"), new MonitorQuery("3", "fast"));
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("f", "some text", new WhitespaceAnalyzer()).build();
+        monitor.match(doc, SimpleMatcher.FACTORY);
+        monitor.match(doc, SimpleMatcher.FACTORY);
+
+        assertThat(metrics.getDocumentCount()).isEqualTo(2);
+        assertThat(metrics.getCandidateCount()).isEqualTo(6);
+        assertThat(metrics.getMatchCount()).isEqualTo(6);
+        assertThat(metrics.getCandidateHitRate()).isEqualTo(1.0);
+
+        RecordingMonitorMetrics.QueryStats stats = metrics.getQueryStats("2");
+        assertThat(stats.getRuns()).isEqualTo(2);
+        assertThat(stats.getMatches()).isEqualTo(2);
+        assertThat(stats.getHitRate()).isEqualTo(1.0);
+        assertThat(stats.getLatency()).isNull();
+
+        List<RecordingMonitorMetrics.QueryStats> slowest = metrics.getSlowestQueries(2);
+        assertThat(slowest).hasSize(2);
+        assertThat(slowest.get(0).queryId).isEqualTo("1");
+        assertThat(slowest.get(0).getMeanTime()).isGreaterThanOrEqualTo(20000000L);
+        assertThat(metrics.getQueryLatency().getCount()).isEqualTo(6);
+
+        metrics.reset();
+        assertThat(metrics.getDocumentCount()).isEqualTo(0);
+        assertThat(metrics.getQueryStats("1").getRuns()).isEqualTo(0);
+
+        monitor.close();
+    }
+
+    @Test
+    public void testStatisticsForDeletedQueriesAreRemoved() throws IOException {
+
+        final RecordingMonitorMetrics metrics = new RecordingMonitorMetrics();
+        Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new MatchAllPresearcher()) {
+            @Override
+            protected MonitorMetrics configureMetrics() {
+                return metrics;
+            }
+        };
+        monitor.update(new MonitorQuery("1", "fast"), new MonitorQuery("2", "fast"), new MonitorQuery("3", "fast"));
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("f", "some text", new WhitespaceAnalyzer()).build();
+        monitor.match(doc, SimpleMatcher.FACTORY);
+
+        monitor.deleteById("1");
+        assertThat(metrics.getQueryStats("1")).isNull();
+        assertThat(metrics.getQueryStats("2")).isNotNull();
+
+        monitor.clear();
+        assertThat(metrics.getQueryStats("2")).isNull();
+        assertThat(metrics.getQueryStats("3")).isNull();
+
+        monitor.close();
+    }
+
+    @Test
+    public void testDeferredMatchersReportTimesFromTheirWorkers() throws IOException {
+
+        final RecordingMonitorMetrics metrics = new RecordingMonitorMetrics();
+        Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(20), new MatchAllPresearcher()) {
+            @Override
+            protected MonitorMetrics configureMetrics() {
+                return metrics;
+            }
+        };
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "some text", new WhitespaceAnalyzer()).build();
+            monitor.match(doc, ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, 2));
+
+            RecordingMonitorMetrics.QueryStats stats = metrics.getQueryStats("1");
+            assertThat(stats.getRuns()).isEqualTo(1);
+            assertThat(stats.getMatches()).isEqualTo(1);
+            assertThat(stats.getTotalTime()).isGreaterThanOrEqualTo(20000000L);
+        }
+        finally {
+            executor.shutdown();
+            monitor.close();
+        }
+    }
+
+    @Test
+    public void testPerQueryLatencyHistogramsAreRecorded() throws IOException {
+
+        final RecordingMonitorMetrics metrics = new RecordingMonitorMetrics(true);
+        Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(20), new MatchAllPresearcher()) {
+            @Override
+            protected MonitorMetrics configureMetrics() {
+                return metrics;
+            }
+        };
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("f", "some text", new WhitespaceAnalyzer()).build();
+        monitor.match(doc, SimpleMatcher.FACTORY);
+
+        LatencyHistogram latency = metrics.getQueryStats("1").getLatency();
+        assertThat(latency.getCount()).isEqualTo(1);
+        assertThat(latency.getPercentile(99)).isGreaterThanOrEqualTo(20000000L);
+        assertThat(metrics.getQueryStats("2").getLatency().getCount()).isEqualTo(1);
+        monitor.close();
+    }
+
+    @Test
+    public void testRunsOfDeletedQueriesAreIgnored() {
+
+        RecordingMonitorMetrics metrics = new RecordingMonitorMetrics();
+        metrics.queryAdded("1");
+        metrics.queryRun("1", 1000, true);
+        metrics.queryDeleted("1");
+
+        // a search that selected the query before it was deleted
+        metrics.queryRun("1", 1000, true);
+        assertThat(metrics.getQueryStats("1")).isNull();
+        assertThat(metrics.getQueryLatency().getCount()).isEqualTo(2);
+    }
+
+}
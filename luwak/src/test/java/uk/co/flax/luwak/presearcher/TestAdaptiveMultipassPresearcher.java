@@ -0,0 +1,83 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.lucene.document.Document;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.termextractor.weights.TermFrequencyTable;
+
+import static uk.co.flax.luwak.util.MatchesAssert.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestAdaptiveMultipassPresearcher extends PresearcherTestBase {
+
+    static TermFrequencyTable corpus() throws IOException {
+        TermFrequencyTable.Builder builder = new TermFrequencyTable.Builder();
+        for (String text : new String[]{ "the rabbit", "the cat", "the dog", "the fox" }) {
+            builder.addDocument(buildDoc("sample", "field", text));
+        }
+        return builder.build();
+    }
+
+    @Override
+    protected Presearcher createPresearcher() {
+        try {
+            return new MultipassTermFilteredPresearcher(4, 0.0f, corpus(), 0.5f);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testUnselectivePassesAreSkipped() throws Exception {
+
+        LuceneQueryParser parser = new LuceneQueryParser("field", WHITESPACE);
+        Document common = presearcher.indexQuery(parser.parse("+the +rabbit", Collections.<String, String>emptyMap()),
+                                                 Collections.<String, String>emptyMap());
+        Assertions.assertThat(common.getField(MultipassTermFilteredPresearcher.field("field", 0))).isNotNull();
+        Assertions.assertThat(common.getField(MultipassTermFilteredPresearcher.field("field", 1))).isNull();
+        Assertions.assertThat(common.getField(MultipassTermFilteredPresearcher.SKIPPED_PASSES_FIELD)).isNotNull();
+
+        Document rare = presearcher.indexQuery(parser.parse("+rabbit +hutch", Collections.<String, String>emptyMap()),
+                                               Collections.<String, String>emptyMap());
+        Assertions.assertThat(rare.getField(MultipassTermFilteredPresearcher.field("field", 1))).isNotNull();
+
+        monitor.update(new MonitorQuery("1", "field:(+the +rabbit)"),
+                       new MonitorQuery("2", "field:(+rabbit +hutch)"));
+
+        assertThat(monitor.match(buildDoc("doc1", "field", "the rabbit"), SimpleMatcher.FACTORY))
+                .hasMatchCount(1)
+                .matchesQuery("1");
+
+        assertThat(monitor.match(buildDoc("doc2", "field", "rabbit hutch"), SimpleMatcher.FACTORY))
+                .hasMatchCount(1)
+                .matchesQuery("2");
+
+        // the skipped passes of query 1 don't filter it out, but query 2's extra pass does
+        assertThat(monitor.match(buildDoc("doc3", "field", "rabbit"), SimpleMatcher.FACTORY))
+                .hasMatchCount(0)
+                .hasQueriesRunCount(1);
+    }
+
+}
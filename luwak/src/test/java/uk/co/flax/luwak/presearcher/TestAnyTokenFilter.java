@@ -0,0 +1,134 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.metrics.RecordingMonitorMetrics;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.flax.luwak.presearcher.PresearcherTestBase.WHITESPACE;
+import static uk.co.flax.luwak.presearcher.PresearcherTestBase.buildDoc;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestAnyTokenFilter {
+
+    private final AnyTokenFilter[] filter = new AnyTokenFilter[1];
+
+    private final RecordingMonitorMetrics metrics = new RecordingMonitorMetrics();
+
+    private Monitor newMonitor(boolean cached) throws IOException {
+        final boolean useCache = cached;
+        Presearcher presearcher = new TermFilteredPresearcher() {
+            @Override
+            protected AnyTokenFilter createAnyTokenFilter() {
+                filter[0] = useCache ? new AnyTokenFilter(new Term(ANYTOKEN_FIELD, ANYTOKEN)) : null;
+                return filter[0];
+            }
+        };
+        return new Monitor(new LuceneQueryParser("f", WHITESPACE), presearcher) {
+            @Override
+            protected MonitorMetrics configureMetrics() {
+                return metrics;
+            }
+        };
+    }
+
+    @Test
+    public void testAnyTokenCandidatesAreCounted() throws IOException {
+
+        try (Monitor monitor = newMonitor(true)) {
+            monitor.update(new MonitorQuery("1", "foo"),
+                           new MonitorQuery("2", "*:*"),
+                           new MonitorQuery("3", "*:* -bar"));
+
+            Matches<QueryMatch> matches = monitor.match(buildDoc("doc1", "f", "foo"), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount()).isEqualTo(3);
+            assertThat(metrics.getCandidateCount()).isEqualTo(3);
+            assertThat(metrics.getAnyTokenCandidateCount()).isEqualTo(2);
+
+            assertThat(filter[0].size()).isGreaterThan(0);
+            assertThat(filter[0].ramBytesUsed()).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    public void testDeletedQueriesAreNotSelected() throws IOException {
+
+        try (Monitor monitor = newMonitor(true)) {
+            monitor.update(new MonitorQuery("1", "*:*"), new MonitorQuery("2", "*:* -bar"));
+            monitor.deleteById("1");
+
+            Matches<QueryMatch> matches = monitor.match(buildDoc("doc1", "f", "foo"), SimpleMatcher.FACTORY);
+            assertThat(matches.getQueriesRun()).isEqualTo(1);
+            assertThat(matches.matches("2")).isNotNull();
+
+            monitor.clear();
+            matches = monitor.match(buildDoc("doc2", "f", "foo"), SimpleMatcher.FACTORY);
+            assertThat(matches.getQueriesRun()).isEqualTo(0);
+
+            monitor.update(new MonitorQuery("3", "*:*"));
+            matches = monitor.match(buildDoc("doc3", "f", "foo"), SimpleMatcher.FACTORY);
+            assertThat(matches.matches("3")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testUncachedAnyTokenQueries() throws IOException {
+
+        try (Monitor monitor = newMonitor(false)) {
+            monitor.update(new MonitorQuery("1", "foo"), new MonitorQuery("2", "*:*"));
+
+            Matches<QueryMatch> matches = monitor.match(buildDoc("doc1", "f", "bar"), SimpleMatcher.FACTORY);
+            assertThat(matches.getQueriesRun()).isEqualTo(1);
+            assertThat(matches.matches("2")).isNotNull();
+            assertThat(metrics.getAnyTokenCandidateCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testUncachedAnyTokenQueriesAreOnlyReadOncePerSegment() throws IOException {
+
+        TermFilteredPresearcher presearcher = new TermFilteredPresearcher();
+        try (Directory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            writer.addDocument(presearcher.indexQuery(new MatchAllDocsQuery()));
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                Bits bits = presearcher.getAnyTokenQueries(leaf);
+                assertThat(bits.get(0)).isTrue();
+                assertThat(presearcher.getAnyTokenQueries(leaf)).isSameAs(bits);
+            }
+        }
+    }
+
+}
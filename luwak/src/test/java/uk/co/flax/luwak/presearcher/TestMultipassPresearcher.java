@@ -1,10 +1,14 @@
 package uk.co.flax.luwak.presearcher;
 
 import java.io.IOException;
+import java.util.Collections;
 
+import org.apache.lucene.document.Document;
+import org.assertj.core.api.Assertions;
 import org.junit.Test;
 import uk.co.flax.luwak.*;
 import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 
 import static uk.co.flax.luwak.util.MatchesAssert.assertThat;
 
@@ -70,4 +74,25 @@ public class TestMultipassPresearcher extends PresearcherTestBase {
                 .hasMatchCount(1);
 
     }
+
+    @Test
+    public void testConvergedQueriesAreOnlyIndexedOnce() throws Exception {
+
+        LuceneQueryParser parser = new LuceneQueryParser("field", WHITESPACE);
+        Document doc = presearcher.indexQuery(parser.parse("foo", Collections.<String, String>emptyMap()),
+                                              Collections.<String, String>emptyMap());
+
+        Assertions.assertThat(doc.getFields(MultipassTermFilteredPresearcher.field("field", 0))).hasSize(1);
+        for (int i = 1; i < 4; i++) {
+            Assertions.assertThat(doc.getField(MultipassTermFilteredPresearcher.field("field", i))).isNull();
+        }
+        Assertions.assertThat(doc.getFields("field")).hasSize(1);
+        Assertions.assertThat(doc.get(MultipassTermFilteredPresearcher.SKIPPED_PASSES_FIELD)).isEqualTo(" 1 2 3");
+
+        monitor.update(new MonitorQuery("1", "field:foo"), new MonitorQuery("2", "field:\"foo bar\""));
+        assertThat(monitor.match(buildDoc("doc1", "field", "foo"), SimpleMatcher.FACTORY))
+                .hasMatchCount(1)
+                .hasQueriesRunCount(1)
+                .matchesQuery("1");
+    }
 }
@@ -62,4 +62,24 @@ public class TestPresearcherMatchCollector {
 
     }
 
+    @Test
+    public void testMatchCollectorShowsAnyTokenMatches() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "*:*"));
+
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField(TEXTFIELD, "this is a foo test", new WhitespaceAnalyzer())
+                .build();
+
+        PresearcherMatches<QueryMatch> matches = monitor.debug(doc, SimpleMatcher.FACTORY);
+
+        assertThat(matches.match("1").presearcherMatches).isEqualTo(" f:test");
+        assertThat(matches.match("2")).isNotNull();
+        assertThat(matches.match("2").presearcherMatches)
+                .isEqualTo(" " + TermFilteredPresearcher.ANYTOKEN_FIELD + ":" + TermFilteredPresearcher.ANYTOKEN);
+        assertThat(matches.match("2").queryMatch).isNotNull();
+
+    }
+
 }
@@ -0,0 +1,71 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestPresearcherProfile {
+
+    public static final String TEXTFIELD = "f";
+
+    @Test
+    public void testFalsePositiveSelectionsAreReported() throws IOException {
+
+        Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"),
+                       new MonitorQuery("2", "\"test phrase\""),
+                       new MonitorQuery("3", "unselected"));
+
+        List<InputDocument> docs = Arrays.asList(
+                InputDocument.builder("doc1").addField(TEXTFIELD, "phrase test", new WhitespaceAnalyzer()).build(),
+                InputDocument.builder("doc2").addField(TEXTFIELD, "phrase test again", new WhitespaceAnalyzer()).build());
+
+        PresearcherProfile profile = monitor.profile(docs, SimpleMatcher.FACTORY);
+
+        assertThat(profile.getDocumentCount()).isEqualTo(2);
+
+        assertThat(profile.getQueryStats("1").getSelections()).isEqualTo(2);
+        assertThat(profile.getQueryStats("1").getPrecision()).isEqualTo(1.0);
+        assertThat(profile.getQueryStats("2").getFalsePositives()).isEqualTo(2);
+        assertThat(profile.getQueryStats("3")).isNull();
+
+        List<PresearcherProfile.QueryStats> worstQueries = profile.getWorstQueries(10, 1);
+        assertThat(worstQueries).hasSize(2);
+        assertThat(worstQueries.get(0).queryId).isEqualTo("2");
+
+        assertThat(profile.getTermStats(new Term(TEXTFIELD, "test")).getMatches()).isEqualTo(2);
+        assertThat(profile.getTermStats(new Term(TEXTFIELD, "again"))).isNull();
+
+        List<PresearcherProfile.TermStats> worstTerms = profile.getWorstTerms(1, 1);
+        assertThat(worstTerms).hasSize(1);
+        assertThat(worstTerms.get(0).getPrecision()).isLessThan(1.0);
+
+        monitor.close();
+    }
+
+}
@@ -0,0 +1,60 @@
+package uk.co.flax.luwak.presearcher;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.Presearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestTermsFilterPresearcher extends TestMultipassPresearcher {
+
+    @Override
+    protected Presearcher createPresearcher() {
+        return new MultipassTermFilteredPresearcher(4, 0.0f) {
+            @Override
+            protected DocumentQueryBuilder getTermsQueryBuilder() {
+                return new TermsFilterDocumentQueryBuilder();
+            }
+        };
+    }
+
+    @Test
+    public void testPassesAreBuiltAsTermsFilters() {
+
+        InputDocument doc = buildDoc("doc1", "field", "hello world and goodbye");
+        Query query = presearcher.buildQuery(doc, PerFieldTokenFilter.PASSTHROUGH);
+
+        // the first clause holds the passes, the second the anytoken query
+        BooleanQuery passes = (BooleanQuery) ((BooleanQuery) query).getClauses()[0].getQuery();
+        assertThat(passes.getClauses()).hasSize(4);
+        for (BooleanClause clause : passes.getClauses()) {
+            assertThat(clause.getQuery()).isInstanceOf(ConstantScoreQuery.class);
+        }
+    }
+
+    @Test
+    public void testEmptyDocumentsBuildAnEmptyQuery() {
+        assertThat(new TermsFilterDocumentQueryBuilder().build()).isEqualTo(new BooleanQuery());
+    }
+
+}
@@ -0,0 +1,136 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.MonitorQuery;
+import uk.co.flax.luwak.Presearcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+
+import static uk.co.flax.luwak.util.MatchesAssert.assertThat;
+import static uk.co.flax.luwak.termextractor.treebuilder.LiteralFactorQueryTreeBuilder.regexpFactors;
+import static uk.co.flax.luwak.termextractor.treebuilder.LiteralFactorQueryTreeBuilder.wildcardFactors;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestWildcardAutomatonPresearcher extends PresearcherTestBase {
+
+    private final WildcardAutomatonPresearcherComponent component = new WildcardAutomatonPresearcherComponent();
+
+    @Override
+    protected Presearcher createPresearcher() {
+        return new TermFilteredPresearcher(component);
+    }
+
+    @Test
+    public void filtersRegexps() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "/hell.*/"), new MonitorQuery("2", "/.*orl[a-z]+/"));
+
+        InputDocument doc1 = InputDocument.builder("doc1")
+                .addField(TEXTFIELD, "well hello there", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY))
+                .hasQueriesRunCount(1)
+                .matchesQuery("1");
+
+        InputDocument doc2 = InputDocument.builder("doc2")
+                .addField(TEXTFIELD, "hello worlds", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc2, SimpleMatcher.FACTORY))
+                .hasQueriesRunCount(2)
+                .hasMatchCount(2);
+
+    }
+
+    @Test
+    public void filtersWildcardsAndPrefixes() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "h?llo"), new MonitorQuery("2", "wor*"), new MonitorQuery("3", "goo*bye"));
+        Assertions.assertThat(component.getFactorCount()).isEqualTo(3);
+
+        InputDocument doc1 = InputDocument.builder("doc1")
+                .addField(TEXTFIELD, "hallo world", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY))
+                .hasQueriesRunCount(2)
+                .matchesQuery("1")
+                .matchesQuery("2");
+
+    }
+
+    @Test
+    public void factorsFromDeletedQueriesAreDroppedOnRefresh() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "h?llo"), new MonitorQuery("2", "wor*"));
+        Assertions.assertThat(component.getFactorCount()).isEqualTo(2);
+
+        monitor.deleteById("1", "2");
+        monitor.update(new MonitorQuery("3", "goo*bye"));
+        Assertions.assertThat(component.getFactorCount()).isEqualTo(1);
+
+    }
+
+    @Test
+    public void factorsOnlyMatchWildcards() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "hello"));
+
+        InputDocument doc1 = InputDocument.builder("doc1")
+                .addField(TEXTFIELD, "hellopolis", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY))
+                .hasQueriesRunCount(0);
+
+    }
+
+    @Test
+    public void unanalyzableRegexpsAreRunForEveryDocument() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "/(hello|goodbye)/"));
+
+        InputDocument doc1 = InputDocument.builder("doc1")
+                .addField(TEXTFIELD, "goodbye", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc1, SimpleMatcher.FACTORY))
+                .hasQueriesRunCount(1)
+                .matchesQuery("1");
+
+    }
+
+    @Test
+    public void testFactorExtraction() {
+
+        Assertions.assertThat(regexpFactors("super.*califragilistic")).containsExactly("super", "califragilistic");
+        Assertions.assertThat(regexpFactors("hel?o")).containsExactly("he", "o");
+        Assertions.assertThat(regexpFactors("ab+c")).containsExactly("ab", "bc");
+        Assertions.assertThat(regexpFactors("a[xyz]{2,3}bc")).containsExactly("a", "bc");
+        Assertions.assertThat(regexpFactors("a\\.b")).containsExactly("a.b");
+        Assertions.assertThat(regexpFactors("(ab|cd)")).isNull();
+
+        Assertions.assertThat(wildcardFactors("h?ll*o")).containsExactly("h", "ll", "o");
+        Assertions.assertThat(wildcardFactors("*")).isEmpty();
+    }
+
+}
@@ -1,11 +1,14 @@
 package uk.co.flax.luwak.termextractor;
 
+import java.io.IOException;
 import java.util.Map;
 
 import com.google.common.collect.ImmutableMap;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.index.Term;
 import org.junit.Test;
 import org.mockito.internal.util.collections.Sets;
+import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.termextractor.querytree.ConjunctionNode;
 import uk.co.flax.luwak.termextractor.querytree.QueryTree;
 import uk.co.flax.luwak.termextractor.querytree.TermNode;
@@ -120,6 +123,88 @@ public class TestQueryTermComparators {
 
     }
 
+    @Test
+    public void testCorpusTermFrequencies() throws IOException {
+
+        TermFrequencyTable.Builder builder = new TermFrequencyTable.Builder();
+        for (String text : new String[]{ "the cat", "the dog", "the rabbit", "a dog" }) {
+            builder.addDocument(InputDocument.builder("doc").addField("f", text, new WhitespaceAnalyzer()).build());
+        }
+        TermFrequencyTable table = builder.build();
+
+        assertThat(table.getDocumentCount()).isEqualTo(4);
+        assertThat(table.getFrequency("f", "the")).isEqualTo(3);
+        assertThat(table.getFrequency("f", "dog")).isEqualTo(2);
+        assertThat(table.getFrequency("f", "missing")).isEqualTo(0);
+        assertThat(table.getFrequency("g", "the")).isEqualTo(0);
+        assertThat(table.getFrequency(null, "the")).isEqualTo(0);
+
+        TreeWeightor weight = TermFrequencyWeightPolicy.weightor(table);
+
+        QueryTree the = new TermNode(new QueryTerm("f", "the", QueryTerm.Type.EXACT));
+        QueryTree dog = new TermNode(new QueryTerm("f", "dog", QueryTerm.Type.EXACT));
+        QueryTree cat = new TermNode(new QueryTerm("f", "cat", QueryTerm.Type.EXACT));
+        QueryTree unseen = new TermNode(new QueryTerm("f", "aardvark", QueryTerm.Type.EXACT));
+
+        assertThat(weight.select(Sets.newSet(the, dog, cat)))
+                .isSameAs(cat);
+        assertThat(weight.select(Sets.newSet(the, dog)))
+                .isSameAs(dog);
+        assertThat(weight.select(Sets.newSet(the, unseen)))
+                .isSameAs(unseen);
+    }
+
+    @Test
+    public void testFieldFrequenciesFallBackToAnyFieldFrequencies() {
+
+        TermFrequencyTable table = new TermFrequencyTable.Builder()
+                .add("f", "the", 10)
+                .add(null, "the", 5)
+                .add(null, "dog", 2)
+                .add("g", "c\u00e4t", 3)
+                .build();
+
+        assertThat(table.getFrequencyOrAnyField("f", "the")).isEqualTo(10);
+        assertThat(table.getFrequencyOrAnyField("f", "dog")).isEqualTo(2);
+        assertThat(table.getFrequencyOrAnyField("g", "c\u00e4t")).isEqualTo(3);
+        assertThat(table.getFrequencyOrAnyField("g", "missing")).isEqualTo(0);
+        assertThat(table.getFrequency("f", "dog")).isEqualTo(0);
+        assertThat(table.getFrequency(null, "the")).isEqualTo(5);
+
+        // tables with no field-specific frequencies are held in a map
+        TermFrequencyTable anyField = TermFrequencyTable.fromMap(ImmutableMap.of("the", 5, "d\u00f6g", 2));
+        assertThat(anyField.getFrequencyOrAnyField("f", "d\u00f6g")).isEqualTo(2);
+        assertThat(anyField.getFrequency(null, "the")).isEqualTo(5);
+        assertThat(anyField.getFrequency("f", "the")).isEqualTo(0);
+        assertThat(anyField.ramBytesUsed()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testZeroFrequencyTermsArePreferredOverUnknownTerms() {
+
+        TermFrequencyTable table = new TermFrequencyTable.Builder()
+                .add("f", "once", 1)
+                .add("f", "never", 0)
+                .build();
+
+        assertThat(table.getFrequencyOrAnyField("f", "never", -1)).isEqualTo(0);
+        assertThat(table.getFrequencyOrAnyField("f", "unknown", -1)).isEqualTo(-1);
+
+        TermFrequencyWeightPolicy policy = new TermFrequencyWeightPolicy(table, 1, 0);
+        QueryTerm once = new QueryTerm("f", "once", QueryTerm.Type.EXACT);
+        QueryTerm never = new QueryTerm("f", "never", QueryTerm.Type.EXACT);
+        QueryTerm unknown = new QueryTerm("f", "unknown", QueryTerm.Type.EXACT);
+
+        assertThat(policy.weigh(unknown)).isEqualTo(policy.weigh(once));
+        assertThat(policy.weigh(never)).isEqualTo(Float.POSITIVE_INFINITY);
+
+        TreeWeightor weight = new TreeWeightor(policy);
+        QueryTree node1 = new TermNode(unknown);
+        QueryTree node2 = new TermNode(never);
+        assertThat(weight.select(Sets.newSet(node1, node2)))
+                .isSameAs(node2);
+    }
+
     @Test
     public void testTermWeightNorms() {
 
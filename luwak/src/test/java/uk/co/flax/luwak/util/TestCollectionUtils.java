@@ -43,6 +43,21 @@ public class TestCollectionUtils {
 
     }
 
+    @Test
+    public void testCostedPartitions() {
+
+        List<String> terms = list("1", "2", "3", "4", "5");
+        assertThat(CollectionUtils.partition(terms, new double[]{ 10, 1, 1, 1, 7 }, 2))
+                .containsExactly(list("1"), list("5", "2", "3", "4"));
+
+        assertThat(CollectionUtils.partition(terms, new double[]{ 1, 1, 1, 1, 1 }, 2))
+                .containsExactly(list("1", "3", "5"), list("2", "4"));
+
+        assertThat(CollectionUtils.partition(terms, new double[]{ 5, 4, 3, 3, 3 }, 3))
+                .containsExactly(list("1"), list("2", "5"), list("3", "4"));
+
+    }
+
     public static List<String> list(String... terms) {
         return ImmutableList.copyOf(terms);
     }
@@ -0,0 +1,141 @@
+package uk.co.flax.luwak.util;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestQueryRewriter {
+
+    @Test
+    public void testReaderIndependentQueriesAreRewritten() {
+
+        TermQuery tq = new TermQuery(new Term("f", "term"));
+        assertThat(QueryRewriter.rewrite(tq)).isSameAs(tq);
+
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(tq, BooleanClause.Occur.SHOULD);
+        assertThat(QueryRewriter.rewrite(bq)).isEqualTo(tq);
+
+        PhraseQuery pq = new PhraseQuery();
+        pq.add(new Term("f", "term"));
+        assertThat(QueryRewriter.rewrite(pq)).isEqualTo(tq);
+    }
+
+    @Test
+    public void testReaderDependentQueriesAreNotRewritten() {
+
+        WildcardQuery wq = new WildcardQuery(new Term("f", "ter*"));
+        assertThat(QueryRewriter.rewrite(wq)).isNull();
+
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(new TermQuery(new Term("f", "term")), BooleanClause.Occur.MUST);
+        bq.add(wq, BooleanClause.Occur.MUST);
+        assertThat(QueryRewriter.rewrite(bq)).isNull();
+
+        // subclasses may override rewrite()
+        TermQuery subclass = new TermQuery(new Term("f", "term")) {};
+        assertThat(QueryRewriter.rewrite(subclass)).isNull();
+    }
+
+    @Test
+    public void testMonitorReportsRewriteHitsAndMisses() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "hello"), new MonitorQuery("2", "hel*"));
+
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "hello world", new WhitespaceAnalyzer())
+                    .build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount()).isEqualTo(2);
+
+            Monitor.CacheStats stats = monitor.getStats();
+            assertThat(stats.rewriteHits).isEqualTo(1);
+            assertThat(stats.rewriteMisses).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testFuzzyAutomataAreCompiled() {
+
+        // prefix automata are cheap to build, so they are left to the original query
+        PrefixQuery pq = new PrefixQuery(new Term("f", "hel"));
+        assertThat(QueryRewriter.compileAutomata(pq)).isSameAs(pq);
+
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(new TermQuery(new Term("f", "term")), BooleanClause.Occur.MUST);
+        bq.add(new FuzzyQuery(new Term("f", "hello"), 1), BooleanClause.Occur.MUST);
+        Query compiled = QueryRewriter.compileAutomata(bq);
+        assertThat(compiled).isNotSameAs(bq);
+        assertThat(((BooleanQuery) compiled).getClauses()[1].getQuery()).isInstanceOf(CompiledAutomatonQuery.class);
+        assertThat(QueryRewriter.automatonRamBytesUsed(compiled)).isGreaterThan(0);
+
+        // automaton queries are already compiled when they are constructed
+        WildcardQuery wq = new WildcardQuery(new Term("f", "h?llo"));
+        assertThat(QueryRewriter.compileAutomata(wq)).isSameAs(wq);
+    }
+
+    @Test
+    public void testCompiledAutomataMatchDocuments() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher()) {
+                @Override
+                protected boolean configureCompiledAutomata() {
+                    return true;
+                }
+            }) {
+            monitor.update(new MonitorQuery("1", "hel*"),
+                           new MonitorQuery("2", "hallo~1"),
+                           new MonitorQuery("3", "wor* AND goodbye~1"),
+                           new MonitorQuery("4", "hallo~1 -wor*"));
+            assertThat(monitor.getStats().automatonRamBytesUsed).isGreaterThan(0);
+
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "hello world", new WhitespaceAnalyzer())
+                    .build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount()).isEqualTo(2);
+            assertThat(matches.matches("1")).isNotNull();
+            assertThat(matches.matches("2")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testAutomataAreNotCompiledByDefault() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "hallo~1"));
+            assertThat(monitor.getStats().automatonRamBytesUsed).isEqualTo(0);
+
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "hello world", new WhitespaceAnalyzer())
+                    .build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).matches("1")).isNotNull();
+        }
+    }
+
+}